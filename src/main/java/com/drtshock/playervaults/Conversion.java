@@ -18,7 +18,9 @@
 
 package com.drtshock.playervaults;
 
+import com.drtshock.playervaults.storage.VaultStorage;
 import com.drtshock.playervaults.vaultmanagement.CardboardBoxSerialization;
+import com.drtshock.playervaults.vaultmanagement.VaultManager;
 import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.configuration.file.YamlConfiguration;
@@ -191,6 +193,7 @@ class Conversion {
             return;
         }
 
+        VaultStorage storage = VaultManager.getInstance().getStorage();
         int players = 0;
         int vaults = 0;
         int failed = 0;
@@ -231,19 +234,13 @@ class Conversion {
                         }
                         contents = OldestSerialization.getItems(data);
                     }
-                    String newData = Base64Coder.encodeLines(CardboardBoxSerialization.writeInventory(contents));
-                    uuidFile.set(key, newData);
+                    storage.save(stringUUID, vaultNumber, CardboardBoxSerialization.writeInventory(contents));
                     vaults++;
                 } catch (Exception e) {
                     logger.severe("Failed to parse vault " + vaultNumber + " for " + stringUUID);
                     failed++;
                 }
             }
-            try {
-                uuidFile.save(newDir.toPath().resolve(file.getName()).toFile());
-            } catch (IOException e) {
-                logger.severe("Failed to save new file " + file.getName());
-            }
 
             players++;
         }
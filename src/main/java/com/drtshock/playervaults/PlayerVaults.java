@@ -18,6 +18,7 @@
 
 package com.drtshock.playervaults;
 
+import com.drtshock.playervaults.commands.AdminCommand;
 import com.drtshock.playervaults.commands.ConvertCommand;
 import com.drtshock.playervaults.commands.DeleteCommand;
 import com.drtshock.playervaults.commands.HelpMeCommand;
@@ -28,21 +29,30 @@ import com.drtshock.playervaults.config.Loader;
 import com.drtshock.playervaults.config.file.Config;
 import com.drtshock.playervaults.config.file.Translation;
 import com.drtshock.playervaults.listeners.Listeners;
+import com.drtshock.playervaults.listeners.MaterialFlags;
 import com.drtshock.playervaults.listeners.SignListener;
 import com.drtshock.playervaults.listeners.VaultPreloadListener;
+import com.drtshock.playervaults.signs.SignIndex;
+import com.drtshock.playervaults.signs.SignJournal;
+import com.drtshock.playervaults.signs.VaultSign;
 import com.drtshock.playervaults.tasks.Cleanup;
+import com.drtshock.playervaults.vaultmanagement.BlockedItems;
 import com.drtshock.playervaults.vaultmanagement.EconomyOperations;
+import com.drtshock.playervaults.vaultmanagement.PlayerResolver;
 import com.drtshock.playervaults.vaultmanagement.VaultManager;
+import com.drtshock.playervaults.vaultmanagement.VaultPermissions;
+import com.drtshock.playervaults.vaultmanagement.VaultSessions;
 import com.drtshock.playervaults.vaultmanagement.VaultViewInfo;
 import net.kyori.adventure.platform.bukkit.BukkitAudiences;
 import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
+import org.bukkit.Location;
 import org.bukkit.Material;
 import org.bukkit.OfflinePlayer;
+import org.bukkit.block.Block;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
 import org.bukkit.configuration.InvalidConfigurationException;
-import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.entity.Player;
 import org.bukkit.inventory.Inventory;
 import org.bukkit.plugin.Plugin;
@@ -59,14 +69,15 @@ import java.nio.file.Files;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.regex.Pattern;
@@ -75,15 +86,13 @@ public class PlayerVaults extends JavaPlugin {
     public static boolean DEBUG;
     private static PlayerVaults instance;
     private final HashMap<String, SignSetInfo> setSign = new HashMap<>();
-    // Player name - VaultViewInfo
-    private final HashMap<String, VaultViewInfo> inVault = new HashMap<>();
-    // VaultViewInfo - Inventory
-    private final HashMap<String, Inventory> openInventories = new HashMap<>();
-    private final Set<Material> blockedMats = new HashSet<>();
+    private final VaultSessions sessions = new VaultSessions();
+    private volatile BlockedItems blockedItems = BlockedItems.NONE;
     private boolean useVault;
-    private YamlConfiguration signs;
-    private File signsFile;
-    private boolean saveQueued;
+    private SignIndex signIndex = new SignIndex();
+    // Changes made while signs are read in the background, null when they aren't.
+    private List<Consumer<SignIndex>> signChanges;
+    private SignJournal signJournal;
     private boolean backupsEnabled;
     private File backupsFolder;
     private File uuidData;
@@ -125,8 +134,10 @@ public class PlayerVaults extends JavaPlugin {
         debug("config", time);
         time = System.currentTimeMillis();
         vaultData = new File(this.getDataFolder(), "newvaults");
-        Conversion.convert(this);
         new VaultManager(this);
+        new VaultPermissions(this);
+        new PlayerResolver(this);
+        Conversion.convert(this);
         debug("conversion", time);
         time = System.currentTimeMillis();
         debug("uuidvaultmanager", time);
@@ -146,6 +157,7 @@ public class PlayerVaults extends JavaPlugin {
         getCommand("pvconvert").setExecutor(new ConvertCommand(this));
         getCommand("pvsign").setExecutor(new SignCommand(this));
         getCommand("pvhelpme").setExecutor(new HelpMeCommand(this));
+        getCommand("pvadmin").setExecutor(new AdminCommand(this));
         debug("registered commands", time);
         time = System.currentTimeMillis();
         useVault = EconomyOperations.setup();
@@ -158,11 +170,9 @@ public class PlayerVaults extends JavaPlugin {
         new BukkitRunnable() {
             @Override
             public void run() {
-                if (saveQueued) {
-                    saveSignsFile();
-                }
+                signJournal.flush();
             }
-        }.runTaskTimer(this, 20, 20);
+        }.runTaskTimerAsynchronously(this, 20, 20);
 
         this.metrics = new Metrics(this, 6905);
         Plugin vault = getServer().getPluginManager().getPlugin("Vault");
@@ -224,7 +234,7 @@ public class PlayerVaults extends JavaPlugin {
             Map<String, Map<String, Integer>> map = new HashMap<>();
             Map<String, Integer> entry = new HashMap<>();
             if (getConf().getItemBlocking().isEnabled()) {
-                for (Material material : blockedMats) {
+                for (Material material : blockedItems.getMaterials()) {
                     entry.put(material.toString(), 1);
                 }
             }
@@ -283,25 +293,27 @@ public class PlayerVaults extends JavaPlugin {
     @Override
     public void onDisable() {
         for (Player player : Bukkit.getOnlinePlayers()) {
-            if (this.inVault.containsKey(player.getUniqueId().toString())) {
+            VaultViewInfo info = this.sessions.getViewing(player);
+            if (info != null) {
                 Inventory inventory = player.getOpenInventory().getTopInventory();
                 if (inventory.getViewers().size() == 1) {
-                    VaultViewInfo info = this.inVault.get(player.getUniqueId().toString());
-                    VaultManager.getInstance().saveVault(inventory, player.getUniqueId().toString(), info.getNumber());
-                    this.openInventories.remove(info.toString());
+                    VaultManager.getInstance().saveVault(inventory, info.getVaultName(), info.getNumber());
+                    this.sessions.removeInventory(info);
                     // try this to make sure that they can't make further edits if the process hangs.
                     player.closeInventory();
                 }
 
-                this.inVault.remove(player.getUniqueId().toString());
+                this.sessions.stopViewing(player);
                 debug("Closing vault for " + player.getName());
                 player.closeInventory();
             }
         }
 
-        if (getConf().getPurge().isEnabled()) {
-            saveSignsFile();
-        }
+        this.signJournal.close();
+
+        VaultManager.getInstance().shutdown();
+        VaultPermissions.getInstance().save();
+        PlayerResolver.getInstance().save();
     }
 
     @Override
@@ -309,6 +321,7 @@ public class PlayerVaults extends JavaPlugin {
         if (cmd.getName().equalsIgnoreCase("pvreload")) {
             reloadConfig();
             loadConfig(); // To update blocked materials.
+            VaultPermissions.getInstance().invalidateAll();
             reloadSigns();
             sender.sendMessage(ChatColor.GREEN + "Reloaded PlayerVault's configuration and lang files.");
         }
@@ -333,17 +346,8 @@ public class PlayerVaults extends JavaPlugin {
             this.getLogger().log(Level.SEVERE, "Could not load config.", e);
         }
 
-        // Clear just in case this is a reload.
-        blockedMats.clear();
-        if (getConf().getItemBlocking().isEnabled()) {
-            for (String s : getConf().getItemBlocking().getList()) {
-                Material mat = Material.matchMaterial(s);
-                if (mat != null) {
-                    blockedMats.add(mat);
-                    getLogger().log(Level.INFO, "Added {0} to list of blocked materials.", mat.name());
-                }
-            }
-        }
+        // Replaced whole, just in case this is a reload.
+        blockedItems = getConf().getItemBlocking().isEnabled() ? BlockedItems.compile(getConf().getItemBlocking().getList(), getLogger()) : BlockedItems.NONE;
 
         File lang = new File(this.getDataFolder(), "lang");
         if (lang.exists()) {
@@ -379,65 +383,154 @@ public class PlayerVaults extends JavaPlugin {
                 e.printStackTrace();
             }
         }
-        this.signsFile = signs;
-        this.signs = YamlConfiguration.loadConfiguration(signs);
+        this.signJournal = new SignJournal(signs, getLogger());
+        readSigns("load");
     }
 
     private void reloadSigns() {
-        if (!getConf().isSigns()) {
+        if (!getConf().isSigns() || this.signChanges != null) {
             return;
         }
-        if (!signsFile.exists()) loadSigns();
-        try {
-            signs.load(signsFile);
-        } catch (IOException | InvalidConfigurationException e) {
-            getLogger().severe("PlayerVaults has encountered a fatal error trying to reload the signs file.");
-            getLogger().severe("Please report this error on GitHub @ https://github.com/drtshock/PlayerVaults/");
-            e.printStackTrace();
-        }
+        readSigns("reload");
     }
 
     /**
-     * Get the signs.yml config.
+     * Reads the signs in the background. Until they're read, the signs known before stay in use, and every
+     * change made to them meanwhile is applied again to what was read.
+     */
+    private void readSigns(String action) {
+        this.signChanges = new ArrayList<>();
+        new BukkitRunnable() {
+            @Override
+            public void run() {
+                SignIndex index;
+                try {
+                    index = signJournal.read();
+                } catch (IOException | InvalidConfigurationException e) {
+                    getLogger().severe("PlayerVaults has encountered a fatal error trying to " + action + " the signs file.");
+                    getLogger().severe("Please report this error on GitHub @ https://github.com/drtshock/PlayerVaults/");
+                    e.printStackTrace();
+                    index = null;
+                }
+                SignIndex read = index;
+                new BukkitRunnable() {
+                    @Override
+                    public void run() {
+                        if (read != null) {
+                            signChanges.forEach(change -> change.accept(read));
+                            signIndex = read;
+                        }
+                        signChanges = null;
+                    }
+                }.runTask(PlayerVaults.this);
+            }
+        }.runTaskAsynchronously(this);
+    }
+
+    /**
+     * Get the index of all vault signs, for finding the sign at a block.
      *
-     * @return The signs.yml config.
+     * @return The sign index.
      */
-    public YamlConfiguration getSigns() {
-        return this.signs;
+    public SignIndex getSignIndex() {
+        return this.signIndex;
     }
 
     /**
-     * Save the signs.yml file.
+     * Adds or replaces a vault sign. It's saved in the background.
+     *
+     * @param location The sign block.
+     * @param sign The vault sign.
      */
-    public void saveSigns() {
-        saveQueued = true;
+    public void setVaultSign(Location location, VaultSign sign) {
+        String world = location.getWorld().getName();
+        int x = location.getBlockX();
+        int y = location.getBlockY();
+        int z = location.getBlockZ();
+        this.signIndex.put(world, x, y, z, sign);
+        this.signJournal.put(world, x, y, z, sign);
+        if (this.signChanges != null) {
+            this.signChanges.add(index -> index.put(world, x, y, z, sign));
+        }
     }
 
-    private void saveSignsFile() {
-        if (!getConf().isSigns()) {
-            return;
+    /**
+     * Removes the vault sign at a block, if there is one. It's saved in the background.
+     *
+     * @param location The block.
+     * @return Whether there was a sign.
+     */
+    public boolean removeVaultSign(Location location) {
+        String world = location.getWorld().getName();
+        int x = location.getBlockX();
+        int y = location.getBlockY();
+        int z = location.getBlockZ();
+        boolean removed = this.signIndex.remove(world, x, y, z) != null;
+        // While signs are being read, the sign may only be in what's read.
+        if (this.signChanges != null) {
+            this.signChanges.add(index -> index.remove(world, x, y, z));
+        } else if (!removed) {
+            return false;
         }
+        this.signJournal.remove(world, x, y, z);
+        return removed;
+    }
 
-        saveQueued = false;
-        try {
-            signs.save(this.signsFile);
-        } catch (IOException e) {
-            getLogger().severe("PlayerVaults has encountered an error trying to save the signs file.");
-            getLogger().severe("Please report this error on GitHub @ https://github.com/drtshock/PlayerVaults/");
-            e.printStackTrace();
+    /**
+     * Removes the vault signs among many blocks, like everything an explosion destroys. Chunks without
+     * signs are skipped after one probe of the index, and the removals are saved together.
+     *
+     * @param blocks The blocks.
+     * @return How many signs were removed.
+     */
+    public int removeVaultSigns(Collection<Block> blocks) {
+        if (this.signChanges != null) {
+            // Signs are being read, so the current index can't tell which blocks had one.
+            int removed = 0;
+            for (Block block : blocks) {
+                if (removeVaultSign(block.getLocation())) {
+                    removed++;
+                }
+            }
+            return removed;
+        }
+        if (this.signIndex.isEmpty()) {
+            return 0;
+        }
+        int removed = 0;
+        String chunkWorld = null;
+        int chunkX = 0;
+        int chunkZ = 0;
+        boolean chunkHasSigns = false;
+        for (Block block : blocks) {
+            String world = block.getWorld().getName();
+            int x = block.getX();
+            int y = block.getY();
+            int z = block.getZ();
+            // Blocks mostly come grouped by chunk, so the index is only probed when the chunk changes.
+            if (x >> 4 != chunkX || z >> 4 != chunkZ || !world.equals(chunkWorld)) {
+                chunkWorld = world;
+                chunkX = x >> 4;
+                chunkZ = z >> 4;
+                chunkHasSigns = this.signIndex.hasSigns(world, chunkX, chunkZ);
+            }
+            if (chunkHasSigns && this.signIndex.remove(world, x, y, z) != null) {
+                this.signJournal.remove(world, x, y, z);
+                removed++;
+            }
         }
+        if (removed > 0) {
+            debug("Removed " + removed + " vault signs of " + blocks.size() + " changed blocks");
+        }
+        return removed;
     }
 
     public HashMap<String, SignSetInfo> getSetSign() {
         return this.setSign;
     }
 
-    public HashMap<String, VaultViewInfo> getInVault() {
-        return this.inVault;
-    }
-
-    public HashMap<String, Inventory> getOpenInventories() {
-        return this.openInventories;
+    public VaultSessions getSessions() {
+        return this.sessions;
     }
 
     public boolean isEconomyEnabled() {
@@ -492,7 +585,11 @@ public class PlayerVaults extends JavaPlugin {
     }
 
     public boolean isBlockedMaterial(Material mat) {
-        return blockedMats.contains(mat);
+        return blockedItems.isBlocked(mat);
+    }
+
+    public BlockedItems getBlockedItems() {
+        return this.blockedItems;
     }
 
     /**
@@ -518,7 +615,7 @@ public class PlayerVaults extends JavaPlugin {
     }
 
     public boolean isSign(Material mat) {
-        return mat.name().toUpperCase().contains("SIGN");
+        return MaterialFlags.isSign(mat);
     }
 
     public int getMaxVaultAmountPermTest() {
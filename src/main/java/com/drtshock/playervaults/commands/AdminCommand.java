@@ -0,0 +1,66 @@
+/*
+ * PlayerVaultsX
+ * Copyright (C) 2013 Trent Hensler
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.drtshock.playervaults.commands;
+
+import com.drtshock.playervaults.PlayerVaults;
+import com.drtshock.playervaults.tasks.Recompress;
+import com.drtshock.playervaults.vaultmanagement.VaultCache;
+import com.drtshock.playervaults.vaultmanagement.VaultManager;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandExecutor;
+import org.bukkit.command.CommandSender;
+
+public class AdminCommand implements CommandExecutor {
+
+    private final PlayerVaults plugin;
+
+    public AdminCommand(PlayerVaults plugin) {
+        this.plugin = plugin;
+    }
+
+    @Override
+    public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
+        if (!sender.hasPermission("playervaults.admin")) {
+            this.plugin.getTL().noPerms().title().send(sender);
+            return true;
+        }
+
+        if (args.length == 1 && args[0].equalsIgnoreCase("recompress")) {
+            if (!Recompress.start()) {
+                this.plugin.getTL().recompressRunning().title().send(sender);
+                return true;
+            }
+            this.plugin.getTL().recompressBackground().title().send(sender);
+            plugin.getServer().getScheduler().runTaskAsynchronously(plugin, new Recompress(plugin, sender));
+        } else if (args.length == 1 && args[0].equalsIgnoreCase("cache")) {
+            VaultCache<?> cache = VaultManager.getInstance().getCache();
+            this.plugin.getTL().cacheStats().title()
+                    .with("entries", String.valueOf(cache.getSize()))
+                    .with("size", String.valueOf(cache.getWeight() / 1024))
+                    .with("max", String.valueOf(cache.getMaxWeight() / 1024))
+                    .with("hits", String.valueOf(cache.getHits()))
+                    .with("misses", String.valueOf(cache.getMisses()))
+                    .with("evictions", String.valueOf(cache.getEvictions()))
+                    .send(sender);
+        } else {
+            sender.sendMessage("/" + label + " <recompress | cache>");
+        }
+        return true;
+    }
+}
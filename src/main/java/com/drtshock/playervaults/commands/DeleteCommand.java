@@ -19,10 +19,9 @@
 package com.drtshock.playervaults.commands;
 
 import com.drtshock.playervaults.PlayerVaults;
+import com.drtshock.playervaults.vaultmanagement.PlayerResolver;
 import com.drtshock.playervaults.vaultmanagement.VaultManager;
 import com.drtshock.playervaults.vaultmanagement.VaultOperations;
-import org.bukkit.Bukkit;
-import org.bukkit.OfflinePlayer;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
@@ -50,24 +49,22 @@ public class DeleteCommand implements CommandExecutor {
                 }
                 break;
             case 2:
-                OfflinePlayer searchPlayer = Bukkit.getOfflinePlayer(args[0]);
-                String target = args[0];
-                if (searchPlayer != null && searchPlayer.hasPlayedBefore()) {
-                    target = searchPlayer.getUniqueId().toString();
-                }
+                PlayerResolver.getInstance().resolve(args[0], uuid -> {
+                    String target = uuid != null ? uuid.toString() : args[0];
 
-                // TODO: fix the stupid message inconsistencies where sometimes this class sends, sometimes vaultops does.
-                if (args[1].equalsIgnoreCase("all")) {
-                    if (sender.hasPermission("playervaults.delete.all")) {
-                        VaultManager.getInstance().deleteAllVaults(target);
-                        this.plugin.getTL().deleteOtherVaultAll().title().with("player", target).send(sender);
-                        PlayerVaults.getInstance().getLogger().info(String.format("%s deleted ALL vaults belonging to %s", sender.getName(), target));
-                    } else {
-                        this.plugin.getTL().noPerms().title().send(sender);
-                    }
+                    // TODO: fix the stupid message inconsistencies where sometimes this class sends, sometimes vaultops does.
+                    if (args[1].equalsIgnoreCase("all")) {
+                        if (sender.hasPermission("playervaults.delete.all")) {
+                            VaultManager.getInstance().deleteAllVaults(target);
+                            this.plugin.getTL().deleteOtherVaultAll().title().with("player", target).send(sender);
+                            PlayerVaults.getInstance().getLogger().info(String.format("%s deleted ALL vaults belonging to %s", sender.getName(), target));
+                        } else {
+                            this.plugin.getTL().noPerms().title().send(sender);
+                        }
 
-                }
-                VaultOperations.deleteOtherVault(sender, target, args[1]);
+                    }
+                    VaultOperations.deleteOtherVault(sender, target, args[1]);
+                });
                 break;
             default:
                 sender.sendMessage("/" + label + " <number>");
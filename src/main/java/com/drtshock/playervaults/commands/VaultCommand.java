@@ -19,17 +19,17 @@
 package com.drtshock.playervaults.commands;
 
 import com.drtshock.playervaults.PlayerVaults;
+import com.drtshock.playervaults.vaultmanagement.PlayerResolver;
 import com.drtshock.playervaults.vaultmanagement.VaultManager;
 import com.drtshock.playervaults.vaultmanagement.VaultOperations;
-import com.drtshock.playervaults.vaultmanagement.VaultViewInfo;
-import org.bukkit.Bukkit;
-import org.bukkit.OfflinePlayer;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
-import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.entity.Player;
 
+import java.util.Set;
+import java.util.TreeSet;
+
 public class VaultCommand implements CommandExecutor {
     private final PlayerVaults plugin;
 
@@ -46,7 +46,7 @@ public class VaultCommand implements CommandExecutor {
 
         if (sender instanceof Player) {
             Player player = (Player) sender;
-            if (PlayerVaults.getInstance().getInVault().containsKey(player.getUniqueId().toString())) {
+            if (PlayerVaults.getInstance().getSessions().isInVault(player) || VaultOperations.isOpening(player)) {
                 // don't let them open another vault.
                 return true;
             }
@@ -54,25 +54,22 @@ public class VaultCommand implements CommandExecutor {
             switch (args.length) {
                 case 1:
                     if (VaultOperations.openOwnVault(player, args[0], true)) {
-                        PlayerVaults.getInstance().getInVault().put(player.getUniqueId().toString(), new VaultViewInfo(player.getUniqueId().toString(), Integer.parseInt(args[0])));
+                        PlayerVaults.debug("Opening vault " + args[0] + " for " + player.getName());
                     } else if (sender.hasPermission("playervaults.admin")) {
-                        OfflinePlayer searchPlayer = Bukkit.getOfflinePlayer(args[0]);
-                        String target = args[0];
-                        if (searchPlayer != null && searchPlayer.hasPlayedBefore()) {
-                            target = searchPlayer.getUniqueId().toString();
-                        }
+                        PlayerResolver.getInstance().resolve(args[0], uuid -> {
+                            String target = uuid != null ? uuid.toString() : args[0];
+                            Set<Integer> vaults = new TreeSet<>(VaultManager.getInstance().getVaultNumbers(target));
+                            if (vaults.isEmpty()) {
+                                this.plugin.getTL().vaultDoesNotExist().title().send(sender);
+                            } else {
+                                StringBuilder sb = new StringBuilder();
+                                for (int vault : vaults) {
+                                    sb.append(vault).append(" ");
+                                }
 
-                        YamlConfiguration file = VaultManager.getInstance().getPlayerVaultFile(target, false);
-                        if (file == null) {
-                            this.plugin.getTL().vaultDoesNotExist().title().send(sender);
-                        } else {
-                            StringBuilder sb = new StringBuilder();
-                            for (String key : file.getKeys(false)) {
-                                sb.append(key.replace("vault", "")).append(" ");
+                                this.plugin.getTL().existingVaults().title().with("player", args[0]).with("vault", sb.toString().trim()).send(sender);
                             }
-
-                            this.plugin.getTL().existingVaults().title().with("player", args[0]).with("vault", sb.toString().trim()).send(sender);
-                        }
+                        });
                     }
                     break;
                 case 2:
@@ -81,24 +78,19 @@ public class VaultCommand implements CommandExecutor {
                         break;
                     }
 
-                    int number;
                     try {
-                        number = Integer.parseInt(args[1]);
+                        Integer.parseInt(args[1]);
                     } catch (NumberFormatException e) {
                         this.plugin.getTL().mustBeNumber().title().send(sender);
                         return true;
                     }
 
-                    String target = args[0];
-                    OfflinePlayer offlinePlayer = Bukkit.getOfflinePlayer(args[0]);
-                    if (offlinePlayer != null && offlinePlayer.hasPlayedBefore()) {
-                        target = offlinePlayer.getUniqueId().toString();
-                    }
-                    if (VaultOperations.openOtherVault(player, target, args[1])) {
-                        PlayerVaults.getInstance().getInVault().put(player.getUniqueId().toString(), new VaultViewInfo(target, number));
-                    } else {
-                        this.plugin.getTL().noOwnerFound().title().with("player", args[0]).send(sender);
-                    }
+                    PlayerResolver.getInstance().resolve(args[0], uuid -> {
+                        String target = uuid != null ? uuid.toString() : args[0];
+                        if (!VaultOperations.openOtherVault(player, target, args[1])) {
+                            this.plugin.getTL().noOwnerFound().title().with("player", args[0]).send(sender);
+                        }
+                    });
                     break;
                 default:
                     this.plugin.getTL().help().title().send(sender);
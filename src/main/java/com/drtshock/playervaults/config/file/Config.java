@@ -30,7 +30,10 @@ public class Config {
     public class Block {
         private boolean enabled = true;
         @Comment("Material list for blocked items (does not support ID's), only effective if the feature is enabled.\n" +
-                " If you don't know material names: https://hub.spigotmc.org/javadocs/bukkit/org/bukkit/Material.html")
+                " If you don't know material names: https://hub.spigotmc.org/javadocs/bukkit/org/bukkit/Material.html\n" +
+                " Use * for any material. To only block some items of a material, add conditions after it, separated by ;\n" +
+                " name=<regex>, lore=<regex>, enchant=<enchantment>, model=<custom model data, 1.14+>\n" +
+                " For example: DIAMOND_SWORD;name=(?i)excalibur;enchant=sharpness")
         private List<String> list = new ArrayList<String>() {
             {
                 this.add("PUMPKIN");
@@ -99,13 +102,110 @@ public class Config {
             }
         }
 
+        public class Sqlite {
+            @Comment("Database file, relative to the plugin folder")
+            private String file = "vaults.db";
+            @Comment("Most vault writes to group into a single statement batch")
+            private int batchSize = 500;
+            @Comment("Time, in milliseconds, between writes to the database")
+            private int flushInterval = 1000;
+
+            public String getFile() {
+                return this.file;
+            }
+
+            public int getBatchSize() {
+                return this.batchSize;
+            }
+
+            public int getFlushInterval() {
+                return this.flushInterval;
+            }
+        }
+
+        public class Compression {
+            @Comment("How to compress vaults when writing them.\n" +
+                    " Options: none, deflate, deflate-dictionary\n" +
+                    " deflate-dictionary needs a dictionary trained by /pvadmin recompress, until then it acts like deflate.\n" +
+                    " Vaults written before a change keep their compression until /pvadmin recompress is run.")
+            private String codec = "deflate";
+            @Comment("Deflate level, 1 (fastest) through 9 (smallest)")
+            private int level = 6;
+            @Comment("How many vaults /pvadmin recompress reads to train a dictionary")
+            private int dictionarySamples = 2000;
+
+            public String getCodec() {
+                return this.codec;
+            }
+
+            public int getLevel() {
+                return this.level;
+            }
+
+            public int getDictionarySamples() {
+                return this.dictionarySamples;
+            }
+        }
+
         private FlatFile flatFile = new FlatFile();
+        private Sqlite sqlite = new Sqlite();
+        private Compression compression = new Compression();
+        @Comment("Recompressing stored vaults pauses while this many vault saves wait to be written.\n" +
+                " Player saves are never held back or refused, this only keeps recompression out of their way.")
+        private int recompressThrottle = 500;
+        @Comment("Time, in seconds, to wait for queued saves on shutdown.\n" +
+                " Anything still queued afterwards is written directly.")
+        private int shutdownTimeout = 30;
+        @Comment("How hard to make sure a written vault is on the disk.\n" +
+                " Options: full (data and folder), data, none (leave it to the OS)\n" +
+                " Vault writes never leave a half written vault behind, this only decides\n" +
+                " whether the newest version can be lost to a power outage.")
+        private String fsync = "data";
+        @Comment("Size, in megabytes, of the cache of recently used vaults.\n" +
+                " Measured by the uncompressed size of the vaults, plus an estimate per item for loaded items\n" +
+                " when the cache is kept on the heap.")
+        private int cacheSize = 64;
+        @Comment("Keep cached vaults outside the Java heap, as stored data rather than items.\n" +
+                " Lowers garbage collection pauses on big servers, at the cost of deserializing items on every open.\n" +
+                " Counts against -XX:MaxDirectMemorySize.")
+        private boolean offHeapCache = false;
+        @Comment("Which storage to keep vaults in.\n" +
+                " Options: flatfile, sqlite\n" +
+                " Switching to sqlite imports existing flatfile vaults the first time.")
         private String storageType = "flatfile";
 
         public FlatFile getFlatFile() {
             return this.flatFile;
         }
 
+        public Sqlite getSqlite() {
+            return this.sqlite;
+        }
+
+        public Compression getCompression() {
+            return this.compression;
+        }
+
+        public int getRecompressThrottle() {
+            return this.recompressThrottle;
+        }
+
+        public int getShutdownTimeout() {
+            return this.shutdownTimeout;
+        }
+
+        public String getFsync() {
+            return this.fsync;
+        }
+
+        public int getCacheSize() {
+            return this.cacheSize;
+        }
+
+        public boolean isOffHeapCache() {
+            return this.offHeapCache;
+        }
+
         public String getStorageType() {
             return this.storageType;
         }
@@ -151,7 +251,11 @@ public class Config {
     @Comment("Sets the highest vault amount this plugin will test perms for")
     private int maxVaultAmountPermTest = 99;
 
-    @Comment("Storage option. Currently only flatfile, but soon more! :)")
+    @Comment("How many seconds a player's vault amount and size permissions are remembered for.\n" +
+            " They are also checked again when the player joins or changes worlds, and on /pvreload.")
+    private int permissionCacheSeconds = 60;
+
+    @Comment("Storage options")
     private Storage storage = new Storage();
 
     public void setFromConfig(Logger l, FileConfiguration c) {
@@ -204,6 +308,10 @@ public class Config {
         return this.maxVaultAmountPermTest;
     }
 
+    public int getPermissionCacheSeconds() {
+        return this.permissionCacheSeconds;
+    }
+
     public Storage getStorage() {
         return this.storage;
     }
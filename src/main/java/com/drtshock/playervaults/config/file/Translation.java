@@ -214,6 +214,10 @@ public class Translation {
         private TL convertPluginNotFound = TL.of("<error>No converter found for that plugin.");
         private TL convertComplete = TL.of("<normal>Converted <info>{count}</info> players to PlayerVaults.");
         private TL convertBackground = TL.of("<normal>Conversion has been forked to the background. See console for updates.");
+        private TL recompressBackground = TL.of("<normal>Recompressing vaults in the background. See console for updates.");
+        private TL recompressRunning = TL.of("<error>Vaults are already being recompressed.");
+        private TL recompressComplete = TL.of("<normal>Queued <info>{count}</info> vaults for recompression.");
+        private TL cacheStats = TL.of("<normal>Vault cache: <info>{entries}</info> vaults, <info>{size}</info>/<info>{max}</info> KB, <info>{hits}</info> hits, <info>{misses}</info> misses, <info>{evictions}</info> evictions");
         private TL locked = TL.of("<error>Vaults are currently locked while conversion occurs. Please try again in a moment!");
         private TL help = TL.of("/pv <number>");
         private TL blockedItem = TL.of("<gold>{item}</gold> <error>is blocked from vaults.");
@@ -336,6 +340,22 @@ public class Translation {
         return this.translations.convertBackground;
     }
 
+    public @NonNull TL recompressBackground() {
+        return this.translations.recompressBackground;
+    }
+
+    public @NonNull TL recompressRunning() {
+        return this.translations.recompressRunning;
+    }
+
+    public @NonNull TL recompressComplete() {
+        return this.translations.recompressComplete;
+    }
+
+    public @NonNull TL cacheStats() {
+        return this.translations.cacheStats;
+    }
+
     public @NonNull TL locked() {
         return this.translations.locked;
     }
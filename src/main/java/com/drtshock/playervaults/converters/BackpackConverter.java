@@ -19,6 +19,7 @@
 package com.drtshock.playervaults.converters;
 
 import com.drtshock.playervaults.PlayerVaults;
+import com.drtshock.playervaults.vaultmanagement.PlayerResolver;
 import com.drtshock.playervaults.vaultmanagement.VaultManager;
 import org.bukkit.Bukkit;
 import org.bukkit.OfflinePlayer;
@@ -71,11 +72,16 @@ public class BackpackConverter implements Converter {
         for (File file : files != null ? files : new File[0]) {
             if (file.isFile() && file.getName().toLowerCase().endsWith(".yml")) {
                 try {
-                    OfflinePlayer player = Bukkit.getOfflinePlayer(file.getName().substring(0, file.getName().lastIndexOf('.')));
-                    if (player == null || player.getUniqueId() == null) {
-                        plugin.getLogger().warning("Unable to convert Backpack for player: " + (player != null ? player.getName() : file.getName()));
+                    String name = file.getName().substring(0, file.getName().lastIndexOf('.'));
+                    // Converters run off the main thread, so a lookup for a name we don't know is fine here.
+                    UUID uuid = PlayerResolver.getInstance().getCached(name);
+                    if (uuid == null) {
+                        OfflinePlayer player = Bukkit.getOfflinePlayer(name);
+                        uuid = player != null ? player.getUniqueId() : null;
+                    }
+                    if (uuid == null) {
+                        plugin.getLogger().warning("Unable to convert Backpack for player: " + name);
                     } else {
-                        UUID uuid = player.getUniqueId();
                         FileConfiguration yaml = YamlConfiguration.loadConfiguration(file);
                         ConfigurationSection section = yaml.getConfigurationSection("backpack");
                         if (section.getKeys(false).size() <= 0) {
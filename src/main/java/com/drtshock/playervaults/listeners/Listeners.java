@@ -19,9 +19,11 @@
 package com.drtshock.playervaults.listeners;
 
 import com.drtshock.playervaults.PlayerVaults;
+import com.drtshock.playervaults.vaultmanagement.VaultHolder;
 import com.drtshock.playervaults.vaultmanagement.VaultManager;
+import com.drtshock.playervaults.vaultmanagement.VaultOperations;
+import com.drtshock.playervaults.vaultmanagement.VaultPermissions;
 import com.drtshock.playervaults.vaultmanagement.VaultViewInfo;
-import org.bukkit.Bukkit;
 import org.bukkit.entity.EntityType;
 import org.bukkit.entity.HumanEntity;
 import org.bukkit.entity.Player;
@@ -32,10 +34,13 @@ import org.bukkit.event.entity.PlayerDeathEvent;
 import org.bukkit.event.inventory.InventoryClickEvent;
 import org.bukkit.event.inventory.InventoryCloseEvent;
 import org.bukkit.event.inventory.InventoryDragEvent;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
 import org.bukkit.event.player.PlayerInteractEntityEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
 import org.bukkit.event.player.PlayerTeleportEvent;
 import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.InventoryView;
 import org.bukkit.inventory.ItemStack;
 
 import java.util.stream.Collectors;
@@ -50,22 +55,16 @@ public class Listeners implements Listener {
     }
 
     public void saveVault(Player player, Inventory inventory) {
-        if (plugin.getInVault().containsKey(player.getUniqueId().toString())) {
-
-            Inventory inv = Bukkit.createInventory(null, 6 * 9);
-            inv.setContents(inventory.getContents().clone());
-
+        VaultViewInfo info = plugin.getSessions().stopViewing(player);
+        if (info != null) {
             PlayerVaults.debug(inventory.getType() + " " + inventory.getClass().getSimpleName());
             if (inventory.getViewers().size() <= 1) {
                 PlayerVaults.debug("Saving!");
-                VaultViewInfo info = plugin.getInVault().get(player.getUniqueId().toString());
-                vaultManager.saveVault(inv, info.getVaultName(), info.getNumber());
-                plugin.getOpenInventories().remove(info.toString());
+                vaultManager.saveVault(inventory, info.getVaultName(), info.getNumber());
+                plugin.getSessions().removeInventory(info);
             } else {
                 PlayerVaults.debug("Other viewers found, not saving! " + inventory.getViewers().stream().map(HumanEntity::getName).collect(Collectors.joining(" ")));
             }
-
-            plugin.getInVault().remove(player.getUniqueId().toString());
         }
     }
 
@@ -76,7 +75,7 @@ public class Listeners implements Listener {
         }
         Player p = event.getPlayer();
         // The player will either quit, die, or close the inventory at some point
-        if (plugin.getInVault().containsKey(p.getUniqueId().toString())) {
+        if (plugin.getSessions().isInVault(p)) {
             return;
         }
         saveVault(p, p.getOpenInventory().getTopInventory());
@@ -85,6 +84,19 @@ public class Listeners implements Listener {
     @EventHandler(priority = EventPriority.HIGH)
     public void onQuit(PlayerQuitEvent event) {
         saveVault(event.getPlayer(), event.getPlayer().getOpenInventory().getTopInventory());
+        VaultPermissions.getInstance().invalidate(event.getPlayer());
+        VaultOperations.cancelOpening(event.getPlayer());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onJoin(PlayerJoinEvent event) {
+        VaultPermissions.getInstance().invalidate(event.getPlayer());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onWorldChange(PlayerChangedWorldEvent event) {
+        // Permissions may be per world.
+        VaultPermissions.getInstance().invalidate(event.getPlayer());
     }
 
     @EventHandler(priority = EventPriority.HIGH)
@@ -101,7 +113,7 @@ public class Listeners implements Listener {
     public void onInteractEntity(PlayerInteractEntityEvent event) {
         Player player = event.getPlayer();
         EntityType type = event.getRightClicked().getType();
-        if ((type == EntityType.VILLAGER || type == EntityType.MINECART) && PlayerVaults.getInstance().getInVault().containsKey(player.getUniqueId().toString())) {
+        if ((type == EntityType.VILLAGER || type == EntityType.MINECART) && PlayerVaults.getInstance().getSessions().isInVault(player)) {
             event.setCancelled(true);
         }
     }
@@ -114,30 +126,21 @@ public class Listeners implements Listener {
 
         Player player = (Player) event.getWhoClicked();
 
-        Inventory clickedInventory = event.getClickedInventory();
-        if (clickedInventory != null) {
-            VaultViewInfo info = PlayerVaults.getInstance().getInVault().get(player.getUniqueId().toString());
-            if (info != null) {
-                int num = info.getNumber();
-                String inventoryTitle = event.getView().getTitle();
-                String title = this.plugin.getVaultTitle(String.valueOf(num));
-                if (inventoryTitle.equalsIgnoreCase(title)) {
-                    ItemStack[] items = new ItemStack[2];
-                    items[0] = event.getCurrentItem();
-                    if (event.getHotbarButton() > -1 && event.getWhoClicked().getInventory().getItem(event.getHotbarButton()) != null) {
-                        items[1] = event.getWhoClicked().getInventory().getItem(event.getHotbarButton());
-                    }
-
-                    for (ItemStack item : items) {
-                        if (item == null) {
-                            continue;
-                        }
-                        if (!player.hasPermission("playervaults.bypassblockeditems") && PlayerVaults.getInstance().isBlockedMaterial(item.getType())) {
-                            event.setCancelled(true);
-                            this.plugin.getTL().blockedItem().title().with("item", item.getType().name()).send(player);
-                            return;
-                        }
-                    }
+        if (event.getClickedInventory() != null && isBlockingItems(player, event.getView())) {
+            ItemStack[] items = new ItemStack[2];
+            items[0] = event.getCurrentItem();
+            if (event.getHotbarButton() > -1 && event.getWhoClicked().getInventory().getItem(event.getHotbarButton()) != null) {
+                items[1] = event.getWhoClicked().getInventory().getItem(event.getHotbarButton());
+            }
+
+            for (ItemStack item : items) {
+                if (item == null) {
+                    continue;
+                }
+                if (this.plugin.getBlockedItems().isBlocked(item)) {
+                    event.setCancelled(true);
+                    this.plugin.getTL().blockedItem().title().with("item", item.getType().name()).send(player);
+                    return;
                 }
             }
         }
@@ -151,23 +154,23 @@ public class Listeners implements Listener {
 
         Player player = (Player) event.getWhoClicked();
 
-        Inventory clickedInventory = event.getInventory();
-        if (clickedInventory != null) {
-            VaultViewInfo info = PlayerVaults.getInstance().getInVault().get(player.getUniqueId().toString());
-            if (info != null) {
-                int num = info.getNumber();
-                String inventoryTitle = event.getView().getTitle();
-                String title = this.plugin.getVaultTitle(String.valueOf(num));
-                if ((inventoryTitle != null && inventoryTitle.equalsIgnoreCase(title)) && event.getNewItems() != null) {
-                    for (ItemStack item : event.getNewItems().values()) {
-                        if (!player.hasPermission("playervaults.bypassblockeditems") && PlayerVaults.getInstance().isBlockedMaterial(item.getType())) {
-                            event.setCancelled(true);
-                            this.plugin.getTL().blockedItem().title().with("item", item.getType().name()).send(player);
-                            return;
-                        }
-                    }
+        if (event.getNewItems() != null && isBlockingItems(player, event.getView())) {
+            for (ItemStack item : event.getNewItems().values()) {
+                if (this.plugin.getBlockedItems().isBlocked(item)) {
+                    event.setCancelled(true);
+                    this.plugin.getTL().blockedItem().title().with("item", item.getType().name()).send(player);
+                    return;
                 }
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Checks if blocked items are kept out of what a player is looking at: one of their open vaults, without
+     * the bypass. Every vault inventory is created with a {@link VaultHolder}, so this never has to look at titles.
+     * The session is checked first: getting the holder of a block inventory takes a snapshot of the block.
+     */
+    private boolean isBlockingItems(Player player, InventoryView view) {
+        return this.plugin.getSessions().isBlockingItems(player) && view.getTopInventory().getHolder() instanceof VaultHolder;
+    }
+}
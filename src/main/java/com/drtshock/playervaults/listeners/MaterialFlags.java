@@ -0,0 +1,95 @@
+/*
+ * PlayerVaultsX
+ * Copyright (C) 2013 Trent Hensler
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.drtshock.playervaults.listeners;
+
+import org.bukkit.Material;
+
+/**
+ * What kind of block each material is, worked out once from the material names so listeners can classify
+ * a block with one array read, instead of comparing strings or taking a snapshot of its state.
+ */
+public final class MaterialFlags {
+
+    public static final int SIGN = 1;
+    public static final int CONTAINER = 1 << 1;
+    public static final int ENCHANTING = 1 << 2;
+    public static final int ENDER_CHEST = 1 << 3;
+    // Name parts of blocks whose state holds an inventory, across the versions we run on.
+    private static final String[] CONTAINERS = {"CHEST", "SHULKER_BOX", "FURNACE", "SMOKER", "DISPENSER", "DROPPER",
+            "HOPPER", "BREWING_STAND", "BARREL", "BEACON", "LECTERN", "JUKEBOX", "CHISELED_BOOKSHELF", "DECORATED_POT", "CRAFTER"};
+    private static final byte[] FLAGS;
+
+    static {
+        Material[] materials = Material.values();
+        FLAGS = new byte[materials.length];
+        for (Material material : materials) {
+            FLAGS[material.ordinal()] = (byte) classify(material);
+        }
+    }
+
+    private MaterialFlags() {
+    }
+
+    private static int classify(Material material) {
+        String name = material.name();
+        int flags = 0;
+        if (name.contains("SIGN")) {
+            flags |= SIGN;
+        }
+        if (!material.isBlock()) {
+            // Minecarts with chests and such are items, never clicked blocks.
+            return flags;
+        }
+        if (name.contains("ENCHANT")) {
+            flags |= ENCHANTING;
+        }
+        if (name.endsWith("ENDER_CHEST")) {
+            flags |= ENDER_CHEST;
+        } else {
+            for (String container : CONTAINERS) {
+                if (name.contains(container)) {
+                    flags |= CONTAINER;
+                    break;
+                }
+            }
+        }
+        return flags;
+    }
+
+    /**
+     * Checks if a material has any of some flags.
+     *
+     * @param material the material
+     * @param flags the flags, or'd together
+     * @return true if it has any of them
+     */
+    public static boolean is(Material material, int flags) {
+        return (FLAGS[material.ordinal()] & flags) != 0;
+    }
+
+    /**
+     * Checks if a material is a sign, standing or on a wall.
+     *
+     * @param material the material
+     * @return true if it's a sign
+     */
+    public static boolean isSign(Material material) {
+        return (FLAGS[material.ordinal()] & SIGN) != 0;
+    }
+}
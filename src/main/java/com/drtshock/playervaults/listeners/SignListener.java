@@ -19,24 +19,36 @@
 package com.drtshock.playervaults.listeners;
 
 import com.drtshock.playervaults.PlayerVaults;
+import com.drtshock.playervaults.signs.SignIndex;
+import com.drtshock.playervaults.signs.VaultSign;
+import com.drtshock.playervaults.vaultmanagement.PlayerResolver;
 import com.drtshock.playervaults.vaultmanagement.VaultOperations;
-import com.drtshock.playervaults.vaultmanagement.VaultViewInfo;
 import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
 import org.bukkit.Location;
-import org.bukkit.OfflinePlayer;
 import org.bukkit.block.Block;
-import org.bukkit.block.Sign;
+import org.bukkit.block.BlockFace;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 import org.bukkit.event.block.Action;
 import org.bukkit.event.block.BlockBreakEvent;
+import org.bukkit.event.block.BlockBurnEvent;
+import org.bukkit.event.block.BlockExplodeEvent;
+import org.bukkit.event.block.BlockPistonExtendEvent;
+import org.bukkit.event.block.BlockPistonRetractEvent;
 import org.bukkit.event.entity.EntityChangeBlockEvent;
+import org.bukkit.event.entity.EntityExplodeEvent;
 import org.bukkit.event.player.PlayerInteractEvent;
-import org.bukkit.inventory.InventoryHolder;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+
+import java.util.ArrayList;
+import java.util.List;
 
 public class SignListener implements Listener {
+    private static final BlockFace[] FACES = {BlockFace.NORTH, BlockFace.EAST, BlockFace.SOUTH, BlockFace.WEST, BlockFace.UP, BlockFace.DOWN};
     private final PlayerVaults plugin;
 
     /**
@@ -59,7 +71,7 @@ public class SignListener implements Listener {
         }
         Block block = event.getClickedBlock();
         if (event.getAction() == Action.RIGHT_CLICK_BLOCK) {
-            if (PlayerVaults.getInstance().getInVault().containsKey(player.getUniqueId().toString())) {
+            if (PlayerVaults.getInstance().getSessions().isInVault(player)) {
                 // Different inventories that we don't want the player to open.
                 if (isInvalidBlock(block)) {
                     event.setCancelled(true);
@@ -74,19 +86,7 @@ public class SignListener implements Listener {
             event.setCancelled(true);
             if (event.getAction() == Action.RIGHT_CLICK_BLOCK || event.getAction() == Action.LEFT_CLICK_BLOCK) {
                 if (block != null && plugin.isSign(block.getType())) {
-                    Sign s = (Sign) block.getState();
-                    Location l = s.getLocation();
-                    String world = l.getWorld().getName();
-                    int x = l.getBlockX();
-                    int y = l.getBlockY();
-                    int z = l.getBlockZ();
-                    if (self) {
-                        plugin.getSigns().set(world + ";;" + x + ";;" + y + ";;" + z + ".self", true);
-                    } else {
-                        plugin.getSigns().set(world + ";;" + x + ";;" + y + ";;" + z + ".owner", owner);
-                    }
-                    plugin.getSigns().set(world + ";;" + x + ";;" + y + ";;" + z + ".chest", i);
-                    plugin.saveSigns();
+                    plugin.setVaultSign(block.getLocation(), new VaultSign(i, self, owner));
                     this.plugin.getTL().setSign().title().send(player);
                 } else {
                     this.plugin.getTL().notASign().title().send(player);
@@ -97,48 +97,46 @@ public class SignListener implements Listener {
             return;
         }
         if (event.getAction() == Action.RIGHT_CLICK_BLOCK) {
-            if (block != null && plugin.isSign(block.getType())) {
-                Location l = block.getLocation();
-                String world = l.getWorld().getName();
-                int x = l.getBlockX();
-                int y = l.getBlockY();
-                int z = l.getBlockZ();
-                if (plugin.getSigns().getKeys(false).contains(world + ";;" + x + ";;" + y + ";;" + z)) {
-                    PlayerVaults.debug("Player " + player.getName() + " clicked sign at world(" + x + "," + y + "," + z + ")");
-                    if (PlayerVaults.getInstance().getInVault().containsKey(player.getUniqueId().toString())) {
+            // Most clicks are in chunks without vault signs, which one probe of the index turns away.
+            if (block != null && plugin.getSignIndex().hasSigns(block.getWorld().getName(), block.getX() >> 4, block.getZ() >> 4) && plugin.isSign(block.getType())) {
+                VaultSign sign = plugin.getSignIndex().get(block.getLocation());
+                if (sign != null) {
+                    PlayerVaults.debug("Player " + player.getName() + " clicked sign at world(" + block.getX() + "," + block.getY() + "," + block.getZ() + ")");
+                    if (PlayerVaults.getInstance().getSessions().isInVault(player) || VaultOperations.isOpening(player)) {
                         // don't let them open another vault.
                         PlayerVaults.debug("Player " + player.getName() + " denied sign vault because already in a vault!");
                         return;
                     }
-                    int num = PlayerVaults.getInstance().getSigns().getInt(world + ";;" + x + ";;" + y + ";;" + z + ".chest", 1);
+                    int num = sign.getChest();
                     String numS = String.valueOf(num);
                     if (player.hasPermission("playervaults.signs.use") || player.hasPermission("playervaults.signs.bypass")) {
-                        boolean self = PlayerVaults.getInstance().getSigns().getBoolean(world + ";;" + x + ";;" + y + ";;" + z + ".self", false);
-                        String owner = self ? player.getName() : PlayerVaults.getInstance().getSigns().getString(world + ";;" + x + ";;" + y + ";;" + z + ".owner");
+                        boolean self = sign.isSelf();
+                        String owner = self ? player.getName() : sign.getOwner();
                         PlayerVaults.debug("Player " + player.getName() + " wants to open a " + (self ? "self" : "non-self (" + owner + ")") + " sign vault");
-                        OfflinePlayer offlinePlayer = Bukkit.getOfflinePlayer(owner != null ? owner : event.getPlayer().getName()); // Not best way but :\
-                        if (offlinePlayer == null || (!offlinePlayer.isOnline() && !offlinePlayer.hasPlayedBefore())) {
-                            PlayerVaults.debug("Denied sign vault for never-seen-before owner " + owner);
-                            this.plugin.getTL().vaultDoesNotExist().title().send(player);
-                            return;
-                        }
                         if (self) {
                             // We already checked that they can use signs, now lets check if they have this many vaults.
-                            if (VaultOperations.openOwnVault(player, numS, false)) {
-                                PlayerVaults.getInstance().getInVault().put(player.getUniqueId().toString(), new VaultViewInfo(player.getUniqueId().toString(), num));
-                            } else {
+                            if (!VaultOperations.openOwnVault(player, numS, false)) {
                                 PlayerVaults.debug("Player " + player.getName() + " failed to open sign vault!");
                                 return;
                             }
-                        } else {
+                            event.setCancelled(true);
+                            openedSign(player, num, owner);
+                            return;
+                        }
+                        // Finding out if the owner ever played may take a lookup, which is done off the main thread.
+                        event.setCancelled(true);
+                        PlayerResolver.getInstance().resolve(owner != null ? owner : player.getName(), uuid -> {
+                            if (uuid == null) {
+                                PlayerVaults.debug("Denied sign vault for never-seen-before owner " + owner);
+                                this.plugin.getTL().vaultDoesNotExist().title().send(player);
+                                return;
+                            }
                             if (!VaultOperations.openOtherVault(player, owner, numS, false)) {
                                 PlayerVaults.debug("Player " + player.getName() + " failed to open sign vault!");
                                 return;
                             }
-                        }
-                        PlayerVaults.debug("Player " + player.getName() + " succeeded in opening sign vault");
-                        event.setCancelled(true);
-                        this.plugin.getTL().openWithSign().title().with("vault", String.valueOf(num)).with("player", owner).send(player);
+                            openedSign(player, num, owner);
+                        });
                     } else {
                         PlayerVaults.debug("Player " + player.getName() + " no sign perms!");
                         this.plugin.getTL().noPerms().title().send(player);
@@ -148,6 +146,11 @@ public class SignListener implements Listener {
         }
     }
 
+    private void openedSign(Player player, int num, String owner) {
+        PlayerVaults.debug("Player " + player.getName() + " succeeded in opening sign vault");
+        this.plugin.getTL().openWithSign().title().with("vault", String.valueOf(num)).with("player", owner).send(player);
+    }
+
     @EventHandler(priority = EventPriority.HIGH, ignoreCancelled = true)
     public void onEntityChangeBlock(EntityChangeBlockEvent event) {
         if (!PlayerVaults.getInstance().getConf().isSigns()) {
@@ -164,28 +167,114 @@ public class SignListener implements Listener {
         blockChangeCheck(event.getBlock().getLocation());
     }
 
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkLoad(ChunkLoadEvent event) {
+        Chunk chunk = event.getChunk();
+        plugin.getSignIndex().loadChunk(plugin, chunk.getWorld().getName(), chunk.getX(), chunk.getZ());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onChunkUnload(ChunkUnloadEvent event) {
+        Chunk chunk = event.getChunk();
+        plugin.getSignIndex().unloadChunk(chunk.getWorld().getName(), chunk.getX(), chunk.getZ());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockBurn(BlockBurnEvent event) {
+        if (!PlayerVaults.getInstance().getConf().isSigns()) {
+            return;
+        }
+        blockChangeCheck(event.getBlock().getLocation());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityExplode(EntityExplodeEvent event) {
+        if (!PlayerVaults.getInstance().getConf().isSigns()) {
+            return;
+        }
+        plugin.removeVaultSigns(event.blockList());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockExplode(BlockExplodeEvent event) {
+        if (!PlayerVaults.getInstance().getConf().isSigns()) {
+            return;
+        }
+        plugin.removeVaultSigns(event.blockList());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPistonExtend(BlockPistonExtendEvent event) {
+        if (!PlayerVaults.getInstance().getConf().isSigns()) {
+            return;
+        }
+        pistonCheck(event.getBlock(), event.getBlocks());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPistonRetract(BlockPistonRetractEvent event) {
+        if (!PlayerVaults.getInstance().getConf().isSigns()) {
+            return;
+        }
+        pistonCheck(event.getBlock(), event.getBlocks());
+    }
+
+    /**
+     * Pistons break signs in their way, and signs attached to the blocks they move, without an event for
+     * each sign. So vault signs next to the piston or the moved blocks are checked once the piston has moved,
+     * and the ones that are gone are removed together.
+     *
+     * @param piston The piston
+     * @param moved The blocks it moves
+     */
+    private void pistonCheck(Block piston, List<Block> moved) {
+        if (plugin.getSignIndex().isEmpty()) {
+            return;
+        }
+        List<Block> candidates = new ArrayList<>();
+        addSignsAround(piston, candidates);
+        for (Block block : moved) {
+            addSignsAround(block, candidates);
+        }
+        if (candidates.isEmpty()) {
+            return;
+        }
+        Bukkit.getScheduler().runTask(plugin, () -> {
+            candidates.removeIf(block -> plugin.isSign(block.getType()));
+            plugin.removeVaultSigns(candidates);
+        });
+    }
+
+    private void addSignsAround(Block block, List<Block> candidates) {
+        SignIndex index = plugin.getSignIndex();
+        String world = block.getWorld().getName();
+        int x = block.getX();
+        int y = block.getY();
+        int z = block.getZ();
+        if (index.get(world, x, y, z) != null) {
+            candidates.add(block);
+        }
+        for (BlockFace face : FACES) {
+            Block relative = block.getRelative(face);
+            if (index.get(world, relative.getX(), relative.getY(), relative.getZ()) != null) {
+                candidates.add(relative);
+            }
+        }
+    }
+
     /**
      * Check if the location given is a sign, and if so, remove it from the signs.yml file
      *
      * @param location The location to check
      */
     public void blockChangeCheck(Location location) {
-        if (plugin.getSigns().getKeys(false).isEmpty()) {
+        if (plugin.getSignIndex().isEmpty()) {
             return; // Save us a check.
         }
-
-        String world = location.getWorld().getName();
-        int x = location.getBlockX();
-        int y = location.getBlockY();
-        int z = location.getBlockZ();
-        if (plugin.getSigns().getKeys(false).contains(world + ";;" + x + ";;" + y + ";;" + z)) {
-            plugin.getSigns().set(world + ";;" + x + ";;" + y + ";;" + z, null);
-            plugin.saveSigns();
-        }
+        plugin.removeVaultSign(location);
     }
 
     private boolean isInvalidBlock(Block block) {
-        String type = block.getType().name();
-        return block.getState() instanceof InventoryHolder || type.contains("ENCHANT") || type.equals("ENDER_CHEST");
+        return MaterialFlags.is(block.getType(), MaterialFlags.CONTAINER | MaterialFlags.ENCHANTING | MaterialFlags.ENDER_CHEST);
     }
 }
\ No newline at end of file
@@ -19,29 +19,30 @@
 package com.drtshock.playervaults.listeners;
 
 import com.drtshock.playervaults.PlayerVaults;
+import com.drtshock.playervaults.vaultmanagement.PlayerResolver;
 import com.drtshock.playervaults.vaultmanagement.VaultManager;
+import org.bukkit.Bukkit;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
-import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
-import org.bukkit.scheduler.BukkitRunnable;
-
-import java.util.UUID;
 
+/**
+ * Starts loading a player's vaults while they are still logging in, so opening one after joining hits the cache.
+ */
 public class VaultPreloadListener implements Listener {
 
     final VaultManager vm = VaultManager.getInstance();
 
+    // Login waits for this event, so the reading is only started here and carries on while the player joins.
     @EventHandler(priority = EventPriority.MONITOR)
-    public void onPlayerJoin(PlayerJoinEvent event) {
-        final UUID uuid = event.getPlayer().getUniqueId();
-        new BukkitRunnable() {
-            @Override
-            public void run() {
-                vm.cachePlayerVaultFile(uuid.toString());
-            }
-        }.runTaskAsynchronously(PlayerVaults.getInstance());
+    public void onPlayerPreLogin(AsyncPlayerPreLoginEvent event) {
+        if (event.getLoginResult() == AsyncPlayerPreLoginEvent.Result.ALLOWED) {
+            String holder = event.getUniqueId().toString();
+            Bukkit.getScheduler().runTaskAsynchronously(PlayerVaults.getInstance(), () -> vm.cachePlayerVaultFile(holder));
+            PlayerResolver.getInstance().remember(event.getUniqueId(), event.getName());
+        }
     }
 
     @EventHandler(priority = EventPriority.MONITOR)
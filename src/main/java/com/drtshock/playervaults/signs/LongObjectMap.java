@@ -0,0 +1,162 @@
+/*
+ * PlayerVaultsX
+ * Copyright (C) 2013 Trent Hensler
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.drtshock.playervaults.signs;
+
+import java.util.Arrays;
+
+/**
+ * Hash map from primitive longs to non-null values, using open addressing so lookups never box or allocate.
+ * Not thread safe.
+ *
+ * @param <V> the value type
+ */
+final class LongObjectMap<V> {
+
+    private static final int MIN_CAPACITY = 8;
+    private long[] keys;
+    // A null value marks a free slot.
+    private Object[] values;
+    private int size;
+
+    LongObjectMap() {
+        this.keys = new long[MIN_CAPACITY];
+        this.values = new Object[MIN_CAPACITY];
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(long key) {
+        int mask = this.keys.length - 1;
+        for (int i = mix(key) & mask; this.values[i] != null; i = (i + 1) & mask) {
+            if (this.keys[i] == key) {
+                return (V) this.values[i];
+            }
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    V put(long key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("null value");
+        }
+        int mask = this.keys.length - 1;
+        int i = mix(key) & mask;
+        for (; this.values[i] != null; i = (i + 1) & mask) {
+            if (this.keys[i] == key) {
+                V old = (V) this.values[i];
+                this.values[i] = value;
+                return old;
+            }
+        }
+        this.keys[i] = key;
+        this.values[i] = value;
+        // Keep the load at or below a half, so probes stay short.
+        if (++this.size * 2 > this.keys.length) {
+            resize(this.keys.length * 2);
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    V remove(long key) {
+        int mask = this.keys.length - 1;
+        int i = mix(key) & mask;
+        for (; this.values[i] != null; i = (i + 1) & mask) {
+            if (this.keys[i] == key) {
+                V old = (V) this.values[i];
+                shiftBack(i);
+                this.size--;
+                return old;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Fills the hole left at a slot by moving back later entries of the same probe run, so lookups never stop
+     * early at it.
+     */
+    private void shiftBack(int hole) {
+        int mask = this.keys.length - 1;
+        int i = hole;
+        while (true) {
+            i = (i + 1) & mask;
+            if (this.values[i] == null) {
+                break;
+            }
+            int home = mix(this.keys[i]) & mask;
+            // Move the entry if its home slot is not within (hole, i], wrapping around.
+            if (hole <= i ? (home <= hole || home > i) : (home <= hole && home > i)) {
+                this.keys[hole] = this.keys[i];
+                this.values[hole] = this.values[i];
+                hole = i;
+            }
+        }
+        this.values[hole] = null;
+    }
+
+    void clear() {
+        Arrays.fill(this.values, null);
+        this.size = 0;
+    }
+
+    interface Visitor<V> {
+        void visit(long key, V value);
+    }
+
+    @SuppressWarnings("unchecked")
+    void forEach(Visitor<V> action) {
+        for (int i = 0; i < this.values.length; i++) {
+            if (this.values[i] != null) {
+                action.visit(this.keys[i], (V) this.values[i]);
+            }
+        }
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = this.keys;
+        Object[] oldValues = this.values;
+        this.keys = new long[capacity];
+        this.values = new Object[capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < oldValues.length; j++) {
+            if (oldValues[j] != null) {
+                int i = mix(oldKeys[j]) & mask;
+                while (this.values[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                this.keys[i] = oldKeys[j];
+                this.values[i] = oldValues[j];
+            }
+        }
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,361 @@
+/*
+ * PlayerVaultsX
+ * Copyright (C) 2013 Trent Hensler
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.drtshock.playervaults.signs;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.plugin.Plugin;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Every vault sign, by world, then chunk, then block. Each chunk with signs has a partition, which is only
+ * kept as sign objects while the chunk is loaded; otherwise it's packed into a byte array. A click in a chunk
+ * without signs is turned away by one probe of the chunk map, and no lookup boxes or allocates.
+ * Only used from the main thread.
+ */
+public class SignIndex {
+
+    // World name -> chunk key -> partition.
+    private final Map<String, LongObjectMap<Partition>> worlds = new HashMap<>();
+    private int size;
+
+    /**
+     * Builds the index from the signs file, where every sign is a section named {@code world;;x;;y;;z}.
+     * Partitions start out packed and are unpacked as their chunks load.
+     *
+     * @param signs the signs file
+     * @param logger where to report signs that can't be read
+     * @return the index
+     */
+    public static SignIndex load(ConfigurationSection signs, Logger logger) {
+        SignIndex index = new SignIndex();
+        for (String key : signs.getKeys(false)) {
+            String[] parts = key.split(";;");
+            if (parts.length != 4) {
+                logger.warning("Ignoring vault sign with invalid location " + key);
+                continue;
+            }
+            try {
+                int x = Integer.parseInt(parts[1]);
+                int y = Integer.parseInt(parts[2]);
+                int z = Integer.parseInt(parts[3]);
+                boolean self = signs.getBoolean(key + ".self", false);
+                VaultSign sign = new VaultSign(signs.getInt(key + ".chest", 1), self, self ? null : signs.getString(key + ".owner"));
+                index.put(parts[0], x, y, z, sign);
+            } catch (NumberFormatException e) {
+                logger.warning("Ignoring vault sign with invalid location " + key);
+            }
+        }
+        for (LongObjectMap<Partition> chunks : index.worlds.values()) {
+            chunks.forEach((chunkKey, partition) -> partition.release());
+        }
+        return index;
+    }
+
+    /**
+     * Writes every sign to a signs file, in the format read by {@link #load(ConfigurationSection, Logger)}.
+     *
+     * @return the signs file
+     */
+    public YamlConfiguration toYaml() {
+        YamlConfiguration yaml = new YamlConfiguration();
+        for (Map.Entry<String, LongObjectMap<Partition>> world : this.worlds.entrySet()) {
+            world.getValue().forEach((chunkKey, partition) -> partition.view().forEach((blockKey, sign) -> {
+                String key = world.getKey() + ";;" + blockX(blockKey) + ";;" + blockY(blockKey) + ";;" + blockZ(blockKey);
+                if (sign.isSelf()) {
+                    yaml.set(key + ".self", true);
+                } else {
+                    yaml.set(key + ".owner", sign.getOwner());
+                }
+                yaml.set(key + ".chest", sign.getChest());
+            }));
+        }
+        return yaml;
+    }
+
+    /**
+     * Packs a block position into a long: 26 bits of x, 26 of z and 12 of y, which covers every block a
+     * world can hold.
+     */
+    static long blockKey(int x, int y, int z) {
+        return ((long) (x & 0x3FFFFFF) << 38) | ((long) (z & 0x3FFFFFF) << 12) | (y & 0xFFF);
+    }
+
+    static int blockX(long blockKey) {
+        return (int) (blockKey >> 38);
+    }
+
+    static int blockY(long blockKey) {
+        return (int) (blockKey << 52 >> 52);
+    }
+
+    static int blockZ(long blockKey) {
+        return (int) (blockKey << 26 >> 38);
+    }
+
+    static long chunkKey(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    private Partition getPartition(String world, int chunkX, int chunkZ) {
+        LongObjectMap<Partition> chunks = this.worlds.get(world);
+        return chunks == null ? null : chunks.get(chunkKey(chunkX, chunkZ));
+    }
+
+    /**
+     * Checks if a chunk has any signs.
+     *
+     * @param world the world name
+     * @param chunkX chunk x
+     * @param chunkZ chunk z
+     * @return true if it has
+     */
+    public boolean hasSigns(String world, int chunkX, int chunkZ) {
+        return this.size != 0 && getPartition(world, chunkX, chunkZ) != null;
+    }
+
+    /**
+     * Gets the sign at a block.
+     *
+     * @param location the block
+     * @return the sign, or null if there is none
+     */
+    public VaultSign get(Location location) {
+        return get(location.getWorld().getName(), location.getBlockX(), location.getBlockY(), location.getBlockZ());
+    }
+
+    /**
+     * Gets the sign at a block.
+     *
+     * @param world the world name
+     * @param x block x
+     * @param y block y
+     * @param z block z
+     * @return the sign, or null if there is none
+     */
+    public VaultSign get(String world, int x, int y, int z) {
+        if (this.size == 0) {
+            return null;
+        }
+        Partition partition = getPartition(world, x >> 4, z >> 4);
+        // A chunk clicked before its partition finished unpacking is unpacked right away.
+        return partition == null ? null : partition.signs().get(blockKey(x, y, z));
+    }
+
+    /**
+     * Adds or replaces the sign at a block.
+     *
+     * @param world the world name
+     * @param x block x
+     * @param y block y
+     * @param z block z
+     * @param sign the sign
+     */
+    public void put(String world, int x, int y, int z, VaultSign sign) {
+        LongObjectMap<Partition> chunks = this.worlds.computeIfAbsent(world, w -> new LongObjectMap<>());
+        long chunkKey = chunkKey(x >> 4, z >> 4);
+        Partition partition = chunks.get(chunkKey);
+        if (partition == null) {
+            partition = new Partition();
+            chunks.put(chunkKey, partition);
+        }
+        if (partition.signs().put(blockKey(x, y, z), sign) == null) {
+            this.size++;
+        }
+    }
+
+    /**
+     * Removes the sign at a block.
+     *
+     * @param world the world name
+     * @param x block x
+     * @param y block y
+     * @param z block z
+     * @return the removed sign, or null if there was none
+     */
+    public VaultSign remove(String world, int x, int y, int z) {
+        if (this.size == 0) {
+            return null;
+        }
+        LongObjectMap<Partition> chunks = this.worlds.get(world);
+        long chunkKey = chunkKey(x >> 4, z >> 4);
+        Partition partition = chunks == null ? null : chunks.get(chunkKey);
+        if (partition == null) {
+            return null;
+        }
+        LongObjectMap<VaultSign> signs = partition.signs();
+        VaultSign sign = signs.remove(blockKey(x, y, z));
+        if (sign != null) {
+            this.size--;
+            if (signs.isEmpty()) {
+                chunks.remove(chunkKey);
+            }
+        }
+        return sign;
+    }
+
+    /**
+     * Unpacks the signs of a chunk that just loaded. The unpacking is done off the main thread.
+     *
+     * @param plugin the plugin to schedule with
+     * @param world the world name
+     * @param chunkX chunk x
+     * @param chunkZ chunk z
+     */
+    public void loadChunk(Plugin plugin, String world, int chunkX, int chunkZ) {
+        Partition partition = getPartition(world, chunkX, chunkZ);
+        if (partition == null) {
+            return;
+        }
+        partition.wanted = true;
+        if (partition.signs != null || partition.loading) {
+            return;
+        }
+        byte[] packed = partition.packed;
+        partition.loading = true;
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+            LongObjectMap<VaultSign> signs = unpack(packed);
+            Bukkit.getScheduler().runTask(plugin, () -> {
+                partition.loading = false;
+                // Skip it if the chunk unloaded again, or the partition changed, meanwhile.
+                if (partition.wanted && partition.packed == packed) {
+                    partition.signs = signs;
+                    partition.packed = null;
+                }
+            });
+        });
+    }
+
+    /**
+     * Packs the signs of a chunk that is unloading, so they don't stay around as objects.
+     *
+     * @param world the world name
+     * @param chunkX chunk x
+     * @param chunkZ chunk z
+     */
+    public void unloadChunk(String world, int chunkX, int chunkZ) {
+        Partition partition = getPartition(world, chunkX, chunkZ);
+        if (partition != null) {
+            partition.release();
+        }
+    }
+
+    /**
+     * Gets the number of signs.
+     *
+     * @return the number of signs
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Checks if there are no signs at all.
+     *
+     * @return true if there are none
+     */
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    private static byte[] pack(LongObjectMap<VaultSign> signs) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + signs.size() * 32);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(signs.size());
+            signs.forEach((blockKey, sign) -> {
+                try {
+                    out.writeLong(blockKey);
+                    out.writeInt(sign.getChest());
+                    out.writeBoolean(sign.isSelf());
+                    out.writeBoolean(sign.getOwner() != null);
+                    if (sign.getOwner() != null) {
+                        out.writeUTF(sign.getOwner());
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static LongObjectMap<VaultSign> unpack(byte[] packed) {
+        LongObjectMap<VaultSign> signs = new LongObjectMap<>();
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(packed))) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                long blockKey = in.readLong();
+                int chest = in.readInt();
+                boolean self = in.readBoolean();
+                String owner = in.readBoolean() ? in.readUTF() : null;
+                signs.put(blockKey, new VaultSign(chest, self, owner));
+            }
+        } catch (IOException e) {
+            // Only ever reads what pack wrote.
+            throw new IllegalStateException(e);
+        }
+        return signs;
+    }
+
+    /**
+     * The signs of one chunk: either unpacked, or packed while the chunk isn't loaded.
+     */
+    private static final class Partition {
+
+        private LongObjectMap<VaultSign> signs = new LongObjectMap<>();
+        private byte[] packed;
+        // Whether the chunk is loaded, so the signs should be unpacked.
+        private boolean wanted;
+        private boolean loading;
+
+        private LongObjectMap<VaultSign> signs() {
+            if (this.signs == null) {
+                this.signs = unpack(this.packed);
+                this.packed = null;
+            }
+            return this.signs;
+        }
+
+        // Reads the signs without unpacking them for good.
+        private LongObjectMap<VaultSign> view() {
+            return this.signs != null ? this.signs : unpack(this.packed);
+        }
+
+        private void release() {
+            this.wanted = false;
+            if (this.signs != null) {
+                this.packed = pack(this.signs);
+                this.signs = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * PlayerVaultsX
+ * Copyright (C) 2013 Trent Hensler
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.drtshock.playervaults.signs;
+
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Saves changes to vault signs. The main thread only queues them; {@link #flush()}, run off the main thread,
+ * appends them to {@code signs.log}. Once the log has grown long enough it's folded into {@code signs.yml},
+ * again off the main thread, and emptied. Signs are read back, also off the main thread, as {@code signs.yml}
+ * with the log replayed on top. Only the flusher ever writes {@code signs.yml}.
+ */
+public class SignJournal {
+
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    // Records in the log before it's folded into signs.yml.
+    private static final int COMPACT_AFTER = 1024;
+    private final File base;
+    private final File log;
+    private final Logger logger;
+    private final Queue<Change> pending = new ConcurrentLinkedQueue<>();
+    // Guarded by this.
+    private int logged;
+
+    /**
+     * Creates a journal for a signs file.
+     *
+     * @param base the signs file
+     * @param logger where to report failures
+     */
+    public SignJournal(File base, Logger logger) {
+        this.base = base;
+        this.log = new File(base.getParentFile(), "signs.log");
+        this.logger = logger;
+    }
+
+    /**
+     * Records that a sign was added or replaced.
+     *
+     * @param world the world name
+     * @param x block x
+     * @param y block y
+     * @param z block z
+     * @param sign the sign
+     */
+    public void put(String world, int x, int y, int z, VaultSign sign) {
+        this.pending.add(new Change(PUT, world, x, y, z, sign));
+    }
+
+    /**
+     * Records that a sign was removed.
+     *
+     * @param world the world name
+     * @param x block x
+     * @param y block y
+     * @param z block z
+     */
+    public void remove(String world, int x, int y, int z) {
+        this.pending.add(new Change(REMOVE, world, x, y, z, null));
+    }
+
+    /**
+     * Reads every sign: the signs file, with the log replayed on top. Changes still queued are appended to the
+     * log first, but it's never folded here. Called off the main thread.
+     *
+     * @return the signs
+     * @throws IOException if the signs file can't be read
+     * @throws InvalidConfigurationException if the signs file isn't valid
+     */
+    public synchronized SignIndex read() throws IOException, InvalidConfigurationException {
+        append();
+        YamlConfiguration yaml = new YamlConfiguration();
+        if (this.base.exists()) {
+            yaml.load(this.base);
+        }
+        SignIndex index = SignIndex.load(yaml, this.logger);
+        this.logged = replay(index);
+        return index;
+    }
+
+    /**
+     * Appends the queued changes to the log, then folds the log into the signs file if it has grown long.
+     * Called off the main thread.
+     */
+    public synchronized void flush() {
+        if (append() && this.logged >= COMPACT_AFTER) {
+            fold();
+        }
+    }
+
+    /**
+     * Appends the queued changes to the log without folding it, so it's quick enough for disable.
+     */
+    public synchronized void close() {
+        append();
+    }
+
+    private boolean append() {
+        if (this.pending.isEmpty()) {
+            return true;
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(this.log.toPath(), StandardOpenOption.CREATE, StandardOpenOption.APPEND)))) {
+            Change change;
+            while ((change = this.pending.poll()) != null) {
+                change.write(out);
+                this.logged++;
+            }
+            return true;
+        } catch (IOException e) {
+            this.logger.log(Level.SEVERE, "Failed to save vault signs to " + this.log.getName(), e);
+            return false;
+        }
+    }
+
+    private void fold() {
+        File temp = new File(this.base.getPath() + ".tmp");
+        try {
+            YamlConfiguration yaml = new YamlConfiguration();
+            if (this.base.exists()) {
+                yaml.load(this.base);
+            }
+            SignIndex index = SignIndex.load(yaml, this.logger);
+            replay(index);
+            index.toYaml().save(temp);
+            Files.move(temp.toPath(), this.base.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            // Replaying the log again on top of the new file would change nothing, so a crash before this is harmless.
+            Files.deleteIfExists(this.log.toPath());
+            this.logged = 0;
+        } catch (IOException | InvalidConfigurationException e) {
+            this.logger.log(Level.SEVERE, "Failed to compact vault signs into " + this.base.getName(), e);
+        }
+    }
+
+    private int replay(SignIndex index) throws IOException {
+        int count = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(this.log.toPath())))) {
+            while (true) {
+                byte op;
+                try {
+                    op = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                try {
+                    String world = in.readUTF();
+                    int x = in.readInt();
+                    int y = in.readInt();
+                    int z = in.readInt();
+                    if (op == PUT) {
+                        int chest = in.readInt();
+                        boolean self = in.readBoolean();
+                        String owner = in.readBoolean() ? in.readUTF() : null;
+                        index.put(world, x, y, z, new VaultSign(chest, self, owner));
+                    } else if (op == REMOVE) {
+                        index.remove(world, x, y, z);
+                    } else {
+                        this.logger.warning("Ignoring the rest of " + this.log.getName() + ", it's damaged");
+                        break;
+                    }
+                } catch (EOFException e) {
+                    // Cut short by a crash mid write.
+                    this.logger.warning("Ignoring the unfinished last change in " + this.log.getName());
+                    break;
+                }
+                count++;
+            }
+        } catch (NoSuchFileException e) {
+            // Nothing changed since the last compaction.
+        }
+        return count;
+    }
+
+    private static final class Change {
+
+        private final byte op;
+        private final String world;
+        private final int x;
+        private final int y;
+        private final int z;
+        private final VaultSign sign;
+
+        private Change(byte op, String world, int x, int y, int z, VaultSign sign) {
+            this.op = op;
+            this.world = world;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.sign = sign;
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeByte(this.op);
+            out.writeUTF(this.world);
+            out.writeInt(this.x);
+            out.writeInt(this.y);
+            out.writeInt(this.z);
+            if (this.op == PUT) {
+                out.writeInt(this.sign.getChest());
+                out.writeBoolean(this.sign.isSelf());
+                out.writeBoolean(this.sign.getOwner() != null);
+                if (this.sign.getOwner() != null) {
+                    out.writeUTF(this.sign.getOwner());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * PlayerVaultsX
+ * Copyright (C) 2013 Trent Hensler
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.drtshock.playervaults.signs;
+
+/**
+ * A sign that opens a vault when clicked: either the clicker's own vault, or a vault of a fixed owner.
+ */
+public final class VaultSign {
+
+    private final int chest;
+    private final boolean self;
+    private final String owner;
+
+    /**
+     * Creates a vault sign.
+     *
+     * @param chest the vault number
+     * @param self true to open the clicker's own vault
+     * @param owner the owner of the vault, null if self
+     */
+    public VaultSign(int chest, boolean self, String owner) {
+        this.chest = chest;
+        this.self = self;
+        this.owner = owner;
+    }
+
+    /**
+     * Gets the vault number.
+     *
+     * @return the vault number
+     */
+    public int getChest() {
+        return this.chest;
+    }
+
+    /**
+     * Gets whether the sign opens the clicker's own vault.
+     *
+     * @return true if it does
+     */
+    public boolean isSelf() {
+        return this.self;
+    }
+
+    /**
+     * Gets the owner of the vault the sign opens.
+     *
+     * @return the owner, null if self
+     */
+    public String getOwner() {
+        return this.owner;
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * PlayerVaultsX
+ * Copyright (C) 2013 Trent Hensler
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.drtshock.playervaults.storage;
+
+import com.drtshock.playervaults.PlayerVaults;
+import com.drtshock.playervaults.vaultmanagement.CardboardBoxSerialization;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.yaml.snakeyaml.external.biz.base64Coder.Base64Coder;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+
+/**
+ * Stores every vault in its own file, inside a folder per holder. Saving a vault only ever rewrites that vault.
+ * Writes go through a temp file in the {@code .tmp} folder, see {@link #recover()}.
+ * <p>
+ * Holders still on the old layout, one YAML file holding all their vaults, are split up the first time
+ * their vaults are touched.
+ */
+public class FlatFileStorage implements VaultStorage {
+
+    private static final String VAULT_PREFIX = "vault";
+    private static final String VAULT_SUFFIX = ".dat";
+    private static final String BACKUPS = "backups";
+    private static final String TEMP = ".tmp";
+    private final PlayerVaults plugin;
+    private final File directory;
+    private final File tempFolder;
+    private final FsyncPolicy fsync;
+
+    public FlatFileStorage(PlayerVaults plugin) {
+        this.plugin = plugin;
+        this.directory = plugin.getVaultData();
+        this.tempFolder = new File(this.directory, TEMP);
+        this.fsync = FsyncPolicy.fromConfig(plugin);
+    }
+
+    /**
+     * Deals with writes cut short by a crash. Every vault is written to a temp file first and only then
+     * moved over the real one, so a temp file still around means the move never happened. Temp files holding
+     * a complete vault are moved into place, anything else is thrown away and the vault keeps its last version.
+     */
+    public void recover() {
+        File[] files = tempFolder.listFiles();
+        for (File file : files != null ? files : new File[0]) {
+            String name = file.getName();
+            int split = name.lastIndexOf('.' + VAULT_PREFIX);
+            int number = split < 0 ? -1 : parseVaultNumber(name.substring(split + 1), VAULT_SUFFIX + TEMP);
+            try {
+                byte[] data = Files.readAllBytes(file.toPath());
+                if (number > 0 && CardboardBoxSerialization.isReadable(data)) {
+                    String holder = name.substring(0, split);
+                    getHolderFolder(holder).mkdirs();
+                    Files.move(file.toPath(), getVaultFile(holder, number).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    plugin.getLogger().info("Recovered interrupted write of vault " + number + " for " + holder);
+                } else {
+                    Files.delete(file.toPath());
+                    plugin.getLogger().warning("Discarded incomplete vault write " + name);
+                }
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.SEVERE, "Failed to recover vault write " + name, e);
+            }
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "flatfile";
+    }
+
+    @Override
+    public byte[] load(String holder, int number) throws IOException {
+        migrate(holder);
+        try (FileChannel channel = FileChannel.open(getVaultFile(holder, number).toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) == -1) {
+                    throw new EOFException("Vault file " + holder + " " + number + " shrank while reading");
+                }
+            }
+            return buffer.array();
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void save(String holder, int number, byte[] data) throws IOException {
+        migrate(holder);
+        File folder = getHolderFolder(holder);
+        if (!folder.exists()) {
+            folder.mkdirs();
+        }
+
+        write(holder, number, data, plugin.isBackupsEnabled());
+    }
+
+    @Override
+    public void delete(String holder, int number) throws IOException {
+        migrate(holder);
+        Files.deleteIfExists(getVaultFile(holder, number).toPath());
+    }
+
+    @Override
+    public void deleteAll(String holder) throws IOException {
+        Files.deleteIfExists(getLegacyFile(holder).toPath());
+        File folder = getHolderFolder(holder);
+        File[] files = folder.listFiles();
+        for (File file : files != null ? files : new File[0]) {
+            Files.deleteIfExists(file.toPath());
+        }
+        Files.deleteIfExists(folder.toPath());
+    }
+
+    @Override
+    public Set<Integer> list(String holder) throws IOException {
+        migrate(holder);
+        Set<Integer> vaults = new HashSet<>();
+        String[] names = getHolderFolder(holder).list();
+        for (String name : names != null ? names : new String[0]) {
+            int number = parseVaultNumber(name, VAULT_SUFFIX);
+            if (number > 0) {
+                vaults.add(number);
+            }
+        }
+        return vaults;
+    }
+
+    @Override
+    public boolean exists(String holder, int number) throws IOException {
+        migrate(holder);
+        return getVaultFile(holder, number).exists();
+    }
+
+    @Override
+    public Set<String> getHolders() {
+        Set<String> holders = new HashSet<>();
+        File[] files = directory.listFiles();
+        for (File file : files != null ? files : new File[0]) {
+            String name = file.getName();
+            if (file.isDirectory()) {
+                if (!name.equals(BACKUPS) && !name.equals(TEMP)) {
+                    holders.add(name);
+                }
+            } else if (name.endsWith(".yml")) {
+                holders.add(name.substring(0, name.length() - 4));
+            }
+        }
+        return holders;
+    }
+
+    @Override
+    public long getLastModified(String holder) {
+        long lastModified = getLegacyFile(holder).lastModified();
+        File[] files = getHolderFolder(holder).listFiles();
+        for (File file : files != null ? files : new File[0]) {
+            lastModified = Math.max(lastModified, file.lastModified());
+        }
+        return lastModified;
+    }
+
+    @Override
+    public void preload(String holder) {
+        // Gets any split of an old style file out of the way before the player opens a vault.
+        try {
+            migrate(holder);
+        } catch (IOException e) {
+            plugin.getLogger().warning("Failed to convert vault file for " + holder + ": " + e.getMessage());
+        }
+    }
+
+    private File getHolderFolder(String holder) {
+        return new File(this.directory, holder);
+    }
+
+    private File getVaultFile(String holder, int number) {
+        return new File(getHolderFolder(holder), VAULT_PREFIX + number + VAULT_SUFFIX);
+    }
+
+    private File getLegacyFile(String holder) {
+        return new File(this.directory, holder + ".yml");
+    }
+
+    /**
+     * Writes a vault without ever leaving a partial file in its place: the data goes to a temp file which is
+     * then moved over the vault in one step. The live file stays intact until then, so it can be backed up
+     * by linking it rather than moving it out of the way.
+     */
+    private void write(String holder, int number, byte[] data, boolean backup) throws IOException {
+        File file = getVaultFile(holder, number);
+        Path temp = new File(tempFolder, holder + '.' + file.getName() + TEMP).toPath();
+        if (!tempFolder.exists()) {
+            tempFolder.mkdirs();
+        }
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                if (fsync != FsyncPolicy.NONE) {
+                    // Only full needs the file metadata, such as its modification time, forced as well.
+                    channel.force(fsync == FsyncPolicy.FULL);
+                }
+            }
+
+            if (backup && file.exists()) {
+                backup(holder, file);
+            }
+            Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+
+        if (fsync == FsyncPolicy.FULL) {
+            try (FileChannel folder = FileChannel.open(file.getParentFile().toPath(), StandardOpenOption.READ)) {
+                folder.force(true);
+            } catch (IOException e) {
+                // Not every platform can sync a folder.
+            }
+        }
+    }
+
+    private void backup(String holder, File file) throws IOException {
+        File backupFolder = new File(plugin.getBackupsFolder(), holder);
+        backupFolder.mkdirs();
+        Path backup = new File(backupFolder, file.getName()).toPath();
+        Files.deleteIfExists(backup);
+        try {
+            Files.createLink(backup, file.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.copy(file.toPath(), backup, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static int parseVaultNumber(String name, String suffix) {
+        if (!name.startsWith(VAULT_PREFIX) || !name.endsWith(suffix)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(VAULT_PREFIX.length(), name.length() - suffix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Splits a holder's old style YAML file into one file per vault.
+     *
+     * @param holder the vault holder
+     * @throws IOException if a vault could not be written
+     */
+    private void migrate(String holder) throws IOException {
+        File legacy = getLegacyFile(holder);
+        if (!legacy.exists()) {
+            return;
+        }
+
+        synchronized (this) {
+            if (!legacy.exists()) {
+                return;
+            }
+
+            // Loaded strictly, a damaged file must not be split into nothing and then deleted.
+            YamlConfiguration yaml = new YamlConfiguration();
+            try {
+                yaml.load(legacy);
+            } catch (InvalidConfigurationException e) {
+                throw new IOException("Damaged vault file " + legacy, e);
+            }
+            File folder = getHolderFolder(holder);
+            folder.mkdirs();
+            for (String key : yaml.getKeys(false)) {
+                int number = parseVaultNumber(key, "");
+                String data = yaml.getString(key);
+                if (number < 1 || data == null) {
+                    continue;
+                }
+                // Anything already split off is newer than the old file.
+                if (!getVaultFile(holder, number).exists()) {
+                    write(holder, number, Base64Coder.decodeLines(data), false);
+                }
+            }
+
+            if (plugin.isBackupsEnabled()) {
+                Files.move(legacy.toPath(), new File(plugin.getBackupsFolder(), legacy.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.delete(legacy.toPath());
+            }
+            PlayerVaults.debug("Split vault file for " + holder + " into " + folder);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * PlayerVaultsX
+ * Copyright (C) 2013 Trent Hensler
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.drtshock.playervaults.storage;
+
+import com.drtshock.playervaults.PlayerVaults;
+
+import java.util.Locale;
+
+/**
+ * How hard storage tries to get a write onto the disk before calling it done.
+ */
+public enum FsyncPolicy {
+    /**
+     * Force the written data, its file metadata and the folder entry pointing to it to disk.
+     */
+    FULL,
+    /**
+     * Force only the written data to disk, not metadata such as its modification time. A crash may lose the
+     * newest version, but never leaves a broken one.
+     */
+    DATA,
+    /**
+     * Leave it to the operating system.
+     */
+    NONE;
+
+    /**
+     * Gets the policy set in the config.
+     *
+     * @param plugin the plugin
+     * @return the policy, {@link #DATA} if the config is invalid
+     */
+    public static FsyncPolicy fromConfig(PlayerVaults plugin) {
+        String name = plugin.getConf().getStorage().getFsync();
+        try {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException | NullPointerException e) {
+            plugin.getLogger().warning("Unknown fsync policy '" + name + "', using data.");
+            return DATA;
+        }
+    }
+}
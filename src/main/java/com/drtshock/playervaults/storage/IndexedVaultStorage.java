@@ -0,0 +1,480 @@
+/*
+ * PlayerVaultsX
+ * Copyright (C) 2013 Trent Hensler
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.drtshock.playervaults.storage;
+
+import com.drtshock.playervaults.PlayerVaults;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps an index of which vaults every holder has and when they last changed in memory, so checking or
+ * listing vaults never touches the storage it wraps. A holder is listed from storage the first time it's
+ * asked about and kept up to date by every save and delete from then on. Once {@link #build()} has run,
+ * every holder in storage is known, so listing holders doesn't touch storage either.
+ * <p>
+ * The index is kept in {@code vaults.index}, with every change since appended to {@code vaults.index.log},
+ * so it survives the server stopping without closing storage. Both are folded into a new index on startup
+ * and close. A change is logged as begun before storage is written and as done after, so a holder whose
+ * change never finished is listed from storage again instead of trusted.
+ */
+public class IndexedVaultStorage implements VaultStorage {
+
+    private static final int MAGIC = 0x50564958; // "PVIX"
+    private static final byte VERSION = 3;
+    private static final byte BEGIN = 0;
+    private static final byte SAVE = 1;
+    private static final byte DELETE = 2;
+    private static final byte DELETE_ALL = 3;
+    private static final byte RELIST = 4;
+    // Changes logged before the index is written again.
+    private static final int COMPACT_AFTER = 8192;
+    private final Logger logger;
+    private final VaultStorage storage;
+    private final File file;
+    private final File logFile;
+    private final Map<String, Holder> holders = new ConcurrentHashMap<>();
+    // Whether every holder in storage is indexed.
+    private volatile boolean complete;
+    // Guarded by this.
+    private final Map<String, Integer> inFlight = new HashMap<>();
+    private DataOutputStream log;
+    private int logged;
+    private long changes;
+
+    public IndexedVaultStorage(PlayerVaults plugin, VaultStorage storage) {
+        this(plugin.getDataFolder(), plugin.getLogger(), storage);
+    }
+
+    IndexedVaultStorage(File folder, Logger logger, VaultStorage storage) {
+        this.logger = logger;
+        this.storage = storage;
+        this.file = new File(folder, "vaults.index");
+        this.logFile = new File(folder, "vaults.index.log");
+        read();
+        replay();
+        compact();
+    }
+
+    private void read() {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION || !in.readUTF().equals(storage.getName())) {
+                logger.info("Ignoring vault index of another storage or version.");
+                return;
+            }
+            boolean complete = in.readBoolean();
+            int holderCount = in.readInt();
+            for (int i = 0; i < holderCount; i++) {
+                String holder = in.readUTF();
+                long lastModified = in.readLong();
+                int vaultCount = in.readInt();
+                Set<Integer> vaults = null;
+                if (vaultCount >= 0) {
+                    vaults = ConcurrentHashMap.newKeySet();
+                    for (int j = 0; j < vaultCount; j++) {
+                        vaults.add(in.readInt());
+                    }
+                }
+                holders.put(holder, new Holder(vaults, lastModified));
+            }
+            this.complete = complete;
+            PlayerVaults.debug("Read vault index of " + holders.size() + " holders");
+        } catch (NoSuchFileException e) {
+            // Nothing indexed yet.
+        } catch (IOException e) {
+            holders.clear();
+            logger.log(Level.WARNING, "Failed to read vault index, it will be rebuilt as needed", e);
+        }
+    }
+
+    /**
+     * Applies the changes logged since the index was last written. Holders with a change that was begun but
+     * never finished are listed from storage again when asked about.
+     */
+    private void replay() {
+        int count = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(logFile.toPath())))) {
+            while (true) {
+                byte op;
+                try {
+                    op = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                String holder = in.readUTF();
+                int number = op == SAVE || op == DELETE ? in.readInt() : 0;
+                long time = op == SAVE ? in.readLong() : 0;
+                apply(op, holder, number, time);
+                count++;
+            }
+        } catch (NoSuchFileException e) {
+            return;
+        } catch (EOFException e) {
+            // Cut short by a crash mid write, everything before it still counts.
+            logger.warning("Ignoring the unfinished last change in " + logFile.getName());
+        } catch (IOException e) {
+            holders.clear();
+            complete = false;
+            logger.log(Level.WARNING, "Failed to read vault index changes, it will be rebuilt as needed", e);
+        } finally {
+            for (String holder : inFlight.keySet()) {
+                relist(holder);
+            }
+            inFlight.clear();
+        }
+        PlayerVaults.debug("Replayed " + count + " vault index changes");
+    }
+
+    /**
+     * Indexes every holder in storage, so listing holders no longer has to ask it. Their vaults are still
+     * only listed when asked about. Blocks while storage lists its holders, so call it asynchronously.
+     *
+     * @throws IOException if the holders could not be listed
+     */
+    public void build() throws IOException {
+        if (complete) {
+            return;
+        }
+        Set<String> listed = storage.getHolders();
+        synchronized (this) {
+            // A holder deleted since is listed as empty and dropped once asked about, so this is always safe.
+            for (String holder : listed) {
+                holders.putIfAbsent(holder, new Holder(null, -1));
+            }
+            complete = true;
+            compact();
+        }
+        PlayerVaults.debug("Indexed " + listed.size() + " vault holders");
+    }
+
+    /**
+     * Checks if every holder in storage is indexed.
+     *
+     * @return true if {@link #build()} has finished
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Writes the whole index, then starts a new change log. Holders with a change in progress are written to
+     * be listed again, as the log that would finish it is started over.
+     */
+    private synchronized void compact() {
+        closeLog();
+        logged = 0;
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp.toPath())))) {
+                out.writeInt(MAGIC);
+                out.writeByte(VERSION);
+                out.writeUTF(storage.getName());
+                out.writeBoolean(complete);
+                Set<String> unfinished = new HashSet<>(inFlight.keySet());
+                unfinished.removeAll(holders.keySet());
+                out.writeInt(holders.size() + unfinished.size());
+                for (Map.Entry<String, Holder> entry : holders.entrySet()) {
+                    Holder holder = entry.getValue();
+                    Set<Integer> vaults = inFlight.containsKey(entry.getKey()) ? null : holder.vaults;
+                    writeHolder(out, entry.getKey(), holder.lastModified, vaults);
+                }
+                for (String holder : unfinished) {
+                    writeHolder(out, holder, -1, null);
+                }
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            // Replaying the old log on top of the new index changes nothing, so a crash before this is harmless.
+            Files.deleteIfExists(logFile.toPath());
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to write vault index, it will be rebuilt as needed", e);
+        }
+    }
+
+    private void writeHolder(DataOutputStream out, String holder, long lastModified, Set<Integer> vaults) throws IOException {
+        out.writeUTF(holder);
+        out.writeLong(lastModified);
+        if (vaults == null) {
+            out.writeInt(-1);
+            return;
+        }
+        // Copied so the count always matches what follows.
+        Set<Integer> numbers = new HashSet<>(vaults);
+        out.writeInt(numbers.size());
+        for (int number : numbers) {
+            out.writeInt(number);
+        }
+    }
+
+    /**
+     * Logs a change and applies it to the index.
+     */
+    private synchronized void change(byte op, String holder, int number, long time) {
+        changes++;
+        apply(op, holder, number, time);
+        try {
+            if (log == null) {
+                log = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+            }
+            log.writeByte(op);
+            log.writeUTF(holder);
+            if (op == SAVE || op == DELETE) {
+                log.writeInt(number);
+            }
+            if (op == SAVE) {
+                log.writeLong(time);
+            }
+            log.flush();
+            if (++logged >= COMPACT_AFTER) {
+                compact();
+            }
+        } catch (IOException e) {
+            // The index can't be trusted after a crash now, so don't keep it.
+            logger.log(Level.WARNING, "Failed to log a vault index change, dropping the saved index", e);
+            closeLog();
+            try {
+                Files.deleteIfExists(file.toPath());
+            } catch (IOException ignored) {
+                // Reading it next time fails the same way.
+            }
+        }
+    }
+
+    private void apply(byte op, String name, int number, long time) {
+        if (op == BEGIN) {
+            inFlight.merge(name, 1, Integer::sum);
+            return;
+        }
+        inFlight.computeIfPresent(name, (key, count) -> count > 1 ? count - 1 : null);
+        Holder holder = holders.get(name);
+        switch (op) {
+            case SAVE:
+                if (holder != null) {
+                    if (holder.vaults != null) {
+                        holder.vaults.add(number);
+                    }
+                    holder.lastModified = time;
+                } else if (complete) {
+                    Set<Integer> vaults = ConcurrentHashMap.newKeySet();
+                    vaults.add(number);
+                    holders.put(name, new Holder(vaults, time));
+                }
+                break;
+            case DELETE:
+                if (holder != null && holder.vaults != null) {
+                    holder.vaults.remove(number);
+                    if (holder.vaults.isEmpty()) {
+                        holders.remove(name);
+                    }
+                }
+                break;
+            case DELETE_ALL:
+                holders.remove(name);
+                break;
+            default:
+                relist(name);
+                break;
+        }
+    }
+
+    /**
+     * Marks a holder to be listed from storage again when next asked about.
+     */
+    private void relist(String name) {
+        Holder holder = holders.get(name);
+        if (holder != null) {
+            holder.vaults = null;
+        } else if (complete) {
+            holders.put(name, new Holder(null, -1));
+        }
+    }
+
+    private void closeLog() {
+        if (log != null) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to close vault index changes", e);
+            }
+            log = null;
+        }
+    }
+
+    /**
+     * Gets the vaults of a holder, listing them from storage if the holder isn't indexed yet. Holders without
+     * any vaults aren't kept.
+     */
+    private Set<Integer> getVaults(String name) throws IOException {
+        Holder holder = holders.get(name);
+        Set<Integer> vaults = holder == null ? null : holder.vaults;
+        if (vaults != null) {
+            return vaults;
+        }
+        if (holder == null && complete) {
+            return Collections.emptySet();
+        }
+        long seen;
+        synchronized (this) {
+            seen = changes;
+        }
+        Set<Integer> listed = ConcurrentHashMap.newKeySet();
+        listed.addAll(storage.list(name));
+        synchronized (this) {
+            // Anything changed while listing could be missing from it, so only keep it if nothing did.
+            if (changes == seen) {
+                holder = holders.get(name);
+                if (listed.isEmpty()) {
+                    holders.remove(name);
+                } else if (holder == null) {
+                    holders.put(name, new Holder(listed, -1));
+                } else {
+                    holder.vaults = listed;
+                }
+            }
+        }
+        return listed;
+    }
+
+    @Override
+    public String getName() {
+        return storage.getName();
+    }
+
+    @Override
+    public byte[] load(String holder, int number) throws IOException {
+        return storage.load(holder, number);
+    }
+
+    @Override
+    public void save(String holder, int number, byte[] data) throws IOException {
+        change(BEGIN, holder, 0, 0);
+        try {
+            storage.save(holder, number, data);
+        } catch (IOException | RuntimeException e) {
+            change(RELIST, holder, 0, 0);
+            throw e;
+        }
+        change(SAVE, holder, number, System.currentTimeMillis());
+    }
+
+    @Override
+    public void delete(String holder, int number) throws IOException {
+        change(BEGIN, holder, 0, 0);
+        try {
+            storage.delete(holder, number);
+        } catch (IOException | RuntimeException e) {
+            change(RELIST, holder, 0, 0);
+            throw e;
+        }
+        change(DELETE, holder, number, 0);
+    }
+
+    @Override
+    public void deleteAll(String holder) throws IOException {
+        change(BEGIN, holder, 0, 0);
+        try {
+            storage.deleteAll(holder);
+        } catch (IOException | RuntimeException e) {
+            // Whatever is left is listed again next time.
+            change(RELIST, holder, 0, 0);
+            throw e;
+        }
+        change(DELETE_ALL, holder, 0, 0);
+    }
+
+    @Override
+    public Set<Integer> list(String holder) throws IOException {
+        return new HashSet<>(getVaults(holder));
+    }
+
+    @Override
+    public boolean exists(String holder, int number) throws IOException {
+        return getVaults(holder).contains(number);
+    }
+
+    @Override
+    public Set<String> getHolders() throws IOException {
+        if (complete) {
+            return new HashSet<>(holders.keySet());
+        }
+        return storage.getHolders();
+    }
+
+    @Override
+    public long getLastModified(String name) throws IOException {
+        Holder holder = holders.get(name);
+        if (holder == null) {
+            return complete ? 0 : storage.getLastModified(name);
+        }
+        if (holder.lastModified < 0) {
+            long lastModified = storage.getLastModified(name);
+            synchronized (this) {
+                // Unless a save got to it first.
+                if (holder.lastModified < 0) {
+                    holder.lastModified = lastModified;
+                }
+            }
+        }
+        return holder.lastModified;
+    }
+
+    @Override
+    public void preload(String holder) {
+        storage.preload(holder);
+    }
+
+    @Override
+    public void unload(String holder) {
+        storage.unload(holder);
+    }
+
+    @Override
+    public void close() {
+        storage.close();
+        compact();
+    }
+
+    private static final class Holder {
+        // Null if the vaults have to be listed from storage again.
+        private volatile Set<Integer> vaults;
+        // Negative if not asked from storage yet.
+        private volatile long lastModified;
+
+        private Holder(Set<Integer> vaults, long lastModified) {
+            this.vaults = vaults;
+            this.lastModified = lastModified;
+        }
+    }
+}
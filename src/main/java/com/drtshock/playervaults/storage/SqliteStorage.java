@@ -0,0 +1,591 @@
+/*
+ * PlayerVaultsX
+ * Copyright (C) 2013 Trent Hensler
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.drtshock.playervaults.storage;
+
+import com.drtshock.playervaults.PlayerVaults;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+
+/**
+ * Stores vaults in an embedded SQLite database, one row per vault.
+ * <p>
+ * Writes are queued and flushed by a single writer thread, which groups everything queued since
+ * its last flush into one transaction. Until a write is committed, reads are answered from the queue.
+ * A batch that keeps failing is retried a few times with growing pauses, then written one vault at a
+ * time. Vaults that still can't be written are saved aside in the {@code failed-writes} folder and kept in
+ * memory for reads until they are saved again.
+ */
+public class SqliteStorage implements VaultStorage {
+
+    private static final byte[] DELETED = new byte[0];
+    private static final String IMPORTED = "imported";
+    // Times a batch is tried before its vaults are written one at a time.
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long MAX_BACKOFF = 30000;
+
+    private final PlayerVaults plugin;
+    private final File file;
+    private final int batchSize;
+    private final long flushInterval;
+    private final Object lock = new Object();
+    private final Object writeLock = new Object();
+    // Guarded by lock. Writes not yet picked up by the writer, DELETED marks a deletion.
+    private LinkedHashMap<VaultKey, byte[]> pending = new LinkedHashMap<>();
+    // Guarded by lock. Writes the writer is currently committing.
+    private Map<VaultKey, byte[]> inFlight = new LinkedHashMap<>();
+    // Guarded by lock. Writes that could not be committed at all, see parkFailed.
+    private final Map<VaultKey, byte[]> parked = new HashMap<>();
+    // Guarded by writeLock. Batches failed in a row.
+    private int failures;
+    private Connection readConnection;
+    private Connection writeConnection;
+    private Thread writer;
+    private volatile boolean running;
+    private volatile boolean imported;
+
+    public SqliteStorage(PlayerVaults plugin, File file, int batchSize, long flushInterval) {
+        this.plugin = plugin;
+        this.file = file;
+        this.batchSize = Math.max(1, batchSize);
+        this.flushInterval = Math.max(50, flushInterval);
+    }
+
+    @Override
+    public String getName() {
+        return "sqlite";
+    }
+
+    /**
+     * Opens the database, creating the table if needed, and starts the writer thread.
+     *
+     * @throws IOException if the database could not be opened
+     */
+    public void open() throws IOException {
+        try {
+            Class.forName("org.sqlite.JDBC");
+        } catch (ClassNotFoundException e) {
+            throw new IOException("SQLite driver not found", e);
+        }
+
+        File parent = this.file.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+
+        try {
+            boolean created = !this.file.exists();
+            String url = "jdbc:sqlite:" + this.file.getAbsolutePath();
+            this.writeConnection = DriverManager.getConnection(url);
+            try (Statement statement = this.writeConnection.createStatement()) {
+                statement.execute("PRAGMA journal_mode=WAL");
+                statement.execute("PRAGMA synchronous=" + getSynchronous(FsyncPolicy.fromConfig(plugin)));
+                statement.execute("CREATE TABLE IF NOT EXISTS vaults (" +
+                        "holder VARCHAR(64) NOT NULL, " +
+                        "number INTEGER NOT NULL, " +
+                        "data BLOB NOT NULL, " +
+                        "modified BIGINT NOT NULL, " +
+                        "PRIMARY KEY (holder, number)) WITHOUT ROWID");
+                // Databases from before this table were always fully imported when they were created.
+                boolean legacy = !created && !hasTable(statement, "meta");
+                statement.execute("CREATE TABLE IF NOT EXISTS meta (" +
+                        "name VARCHAR(64) PRIMARY KEY NOT NULL, " +
+                        "value TEXT NOT NULL)");
+                if (legacy) {
+                    setMeta(IMPORTED, "true");
+                }
+                this.imported = legacy || getMeta(statement, IMPORTED) != null;
+            }
+            this.writeConnection.setAutoCommit(false);
+            this.readConnection = DriverManager.getConnection(url);
+        } catch (SQLException e) {
+            throw new IOException("Failed to open " + this.file, e);
+        }
+
+        this.running = true;
+        this.writer = new Thread(this::writeLoop, "PlayerVaults SQLite writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    private static String getSynchronous(FsyncPolicy policy) {
+        switch (policy) {
+            case FULL:
+                return "FULL";
+            case NONE:
+                return "OFF";
+            default:
+                // In WAL mode this syncs on checkpoints, a crash can only lose the newest transactions.
+                return "NORMAL";
+        }
+    }
+
+    private static boolean hasTable(Statement statement, String table) throws SQLException {
+        try (ResultSet result = statement.executeQuery("SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = '" + table + "'")) {
+            return result.next();
+        }
+    }
+
+    private static String getMeta(Statement statement, String name) throws SQLException {
+        try (ResultSet result = statement.executeQuery("SELECT value FROM meta WHERE name = '" + name + "'")) {
+            return result.next() ? result.getString(1) : null;
+        }
+    }
+
+    // Commits on its own when the write connection is still in auto commit.
+    private void setMeta(String name, String value) throws SQLException {
+        try (PreparedStatement statement = writeConnection.prepareStatement("INSERT OR REPLACE INTO meta (name, value) VALUES (?, ?)")) {
+            statement.setString(1, name);
+            statement.setString(2, value);
+            statement.executeUpdate();
+        }
+    }
+
+    /**
+     * Gets whether vaults from flatfile storage have been imported into this database. Set only once an
+     * import has been fully written, so an import cut short is done again.
+     *
+     * @return true if the import is done
+     */
+    public boolean isImported() {
+        return this.imported;
+    }
+
+    /**
+     * Writes everything queued, then records that the import of flatfile vaults is done.
+     *
+     * @throws IOException if the queued vaults or the record could not be written
+     */
+    public void markImported() throws IOException {
+        while (hasPending()) {
+            writeBatch();
+        }
+        synchronized (writeLock) {
+            synchronized (lock) {
+                if (!parked.isEmpty()) {
+                    throw new IOException(parked.size() + " imported vaults could not be written");
+                }
+            }
+            try {
+                setMeta(IMPORTED, "true");
+                writeConnection.commit();
+            } catch (SQLException e) {
+                rollback();
+                throw new IOException(e);
+            }
+        }
+        this.imported = true;
+    }
+
+    private boolean hasPending() {
+        synchronized (lock) {
+            return !pending.isEmpty();
+        }
+    }
+
+    @Override
+    public byte[] load(String holder, int number) throws IOException {
+        VaultKey key = new VaultKey(holder, number);
+        synchronized (lock) {
+            byte[] queued = getQueued(key);
+            if (queued != null) {
+                return queued == DELETED ? null : queued;
+            }
+        }
+        synchronized (readConnection) {
+            try (PreparedStatement statement = readConnection.prepareStatement("SELECT data FROM vaults WHERE holder = ? AND number = ?")) {
+                statement.setString(1, holder);
+                statement.setInt(2, number);
+                try (ResultSet result = statement.executeQuery()) {
+                    return result.next() ? result.getBytes(1) : null;
+                }
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    @Override
+    public void save(String holder, int number, byte[] data) {
+        queue(new VaultKey(holder, number), data);
+    }
+
+    @Override
+    public void delete(String holder, int number) {
+        queue(new VaultKey(holder, number), DELETED);
+    }
+
+    @Override
+    public void deleteAll(String holder) throws IOException {
+        synchronized (lock) {
+            pending.keySet().removeIf(key -> key.getHolder().equals(holder));
+            parked.keySet().removeIf(key -> key.getHolder().equals(holder));
+        }
+        // Waits for any batch being committed, so it can't resurrect the holder's vaults afterwards.
+        synchronized (writeLock) {
+            try (PreparedStatement statement = writeConnection.prepareStatement("DELETE FROM vaults WHERE holder = ?")) {
+                statement.setString(1, holder);
+                statement.executeUpdate();
+                writeConnection.commit();
+            } catch (SQLException e) {
+                rollback();
+                throw new IOException(e);
+            }
+        }
+    }
+
+    @Override
+    public Set<Integer> list(String holder) throws IOException {
+        // Snapshot the queue first, a batch committed while we query is then still accounted for.
+        Map<VaultKey, byte[]> queued = new LinkedHashMap<>();
+        synchronized (lock) {
+            copyQueued(parked, holder, queued);
+            copyQueued(inFlight, holder, queued);
+            copyQueued(pending, holder, queued);
+        }
+
+        Set<Integer> vaults = new HashSet<>();
+        synchronized (readConnection) {
+            try (PreparedStatement statement = readConnection.prepareStatement("SELECT number FROM vaults WHERE holder = ?")) {
+                statement.setString(1, holder);
+                try (ResultSet result = statement.executeQuery()) {
+                    while (result.next()) {
+                        vaults.add(result.getInt(1));
+                    }
+                }
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+        }
+        for (Map.Entry<VaultKey, byte[]> entry : queued.entrySet()) {
+            if (entry.getValue() == DELETED) {
+                vaults.remove(entry.getKey().getNumber());
+            } else {
+                vaults.add(entry.getKey().getNumber());
+            }
+        }
+        return vaults;
+    }
+
+    @Override
+    public boolean exists(String holder, int number) throws IOException {
+        VaultKey key = new VaultKey(holder, number);
+        synchronized (lock) {
+            byte[] queued = getQueued(key);
+            if (queued != null) {
+                return queued != DELETED;
+            }
+        }
+        synchronized (readConnection) {
+            try (PreparedStatement statement = readConnection.prepareStatement("SELECT 1 FROM vaults WHERE holder = ? AND number = ?")) {
+                statement.setString(1, holder);
+                statement.setInt(2, number);
+                try (ResultSet result = statement.executeQuery()) {
+                    return result.next();
+                }
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    @Override
+    public Set<String> getHolders() throws IOException {
+        Set<String> holders = new HashSet<>();
+        synchronized (readConnection) {
+            try (Statement statement = readConnection.createStatement();
+                 ResultSet result = statement.executeQuery("SELECT DISTINCT holder FROM vaults")) {
+                while (result.next()) {
+                    holders.add(result.getString(1));
+                }
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+        }
+        synchronized (lock) {
+            addHolders(parked, holders);
+            addHolders(pending, holders);
+        }
+        return holders;
+    }
+
+    @Override
+    public long getLastModified(String holder) throws IOException {
+        synchronized (readConnection) {
+            try (PreparedStatement statement = readConnection.prepareStatement("SELECT MAX(modified) FROM vaults WHERE holder = ?")) {
+                statement.setString(1, holder);
+                try (ResultSet result = statement.executeQuery()) {
+                    return result.next() ? result.getLong(1) : 0;
+                }
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        this.running = false;
+        if (this.writer != null) {
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+            try {
+                this.writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // Anything queued after the writer stopped.
+        writeBatch();
+        synchronized (lock) {
+            if (!pending.isEmpty()) {
+                plugin.getLogger().severe("Could not write " + pending.size() + " vaults to the database before closing!");
+            }
+            if (!parked.isEmpty()) {
+                plugin.getLogger().severe(parked.size() + " vaults were never written to the database, see the " + getFailedFolder().getName() + " folder.");
+            }
+        }
+        try {
+            if (this.readConnection != null) {
+                this.readConnection.close();
+            }
+            if (this.writeConnection != null) {
+                this.writeConnection.close();
+            }
+        } catch (SQLException e) {
+            plugin.getLogger().log(Level.SEVERE, "Failed to close vault database", e);
+        }
+    }
+
+    private void queue(VaultKey key, byte[] data) {
+        synchronized (lock) {
+            // Re-insert so the map keeps write order.
+            pending.remove(key);
+            pending.put(key, data);
+            // Superseded, and must not shadow this write once it is committed.
+            parked.remove(key);
+            if (pending.size() >= batchSize) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    // Must hold lock.
+    private byte[] getQueued(VaultKey key) {
+        byte[] queued = pending.get(key);
+        if (queued == null) {
+            queued = inFlight.get(key);
+        }
+        return queued != null ? queued : parked.get(key);
+    }
+
+    private static void copyQueued(Map<VaultKey, byte[]> queued, String holder, Map<VaultKey, byte[]> into) {
+        for (Map.Entry<VaultKey, byte[]> entry : queued.entrySet()) {
+            if (entry.getKey().getHolder().equals(holder)) {
+                into.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private static void addHolders(Map<VaultKey, byte[]> queued, Set<String> into) {
+        for (Map.Entry<VaultKey, byte[]> entry : queued.entrySet()) {
+            if (entry.getValue() != DELETED) {
+                into.add(entry.getKey().getHolder());
+            }
+        }
+    }
+
+    private void writeLoop() {
+        while (running) {
+            synchronized (lock) {
+                if (pending.isEmpty()) {
+                    try {
+                        lock.wait(flushInterval);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            writeBatch();
+        }
+    }
+
+    private void writeBatch() {
+        synchronized (writeLock) {
+            synchronized (lock) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                inFlight = pending;
+                pending = new LinkedHashMap<>();
+            }
+
+            try {
+                int count = commit(inFlight);
+                failures = 0;
+                PlayerVaults.debug("Committed " + count + " vault writes");
+            } catch (SQLException e) {
+                rollback();
+                if (++failures < MAX_ATTEMPTS) {
+                    plugin.getLogger().log(Level.WARNING, "Failed to write " + inFlight.size() + " vaults to the database, will retry (" + failures + '/' + MAX_ATTEMPTS + ')', e);
+                    requeue();
+                    backoff();
+                    return;
+                }
+                failures = 0;
+                plugin.addException(new IllegalStateException("Failed to write vault batch", e));
+                plugin.getLogger().log(Level.SEVERE, "Failed to write " + inFlight.size() + " vaults to the database " + MAX_ATTEMPTS + " times, writing them one at a time", e);
+                commitSeparately();
+            }
+
+            synchronized (lock) {
+                inFlight = new LinkedHashMap<>();
+                lock.notifyAll();
+            }
+        }
+    }
+
+    // Must hold writeLock.
+    private int commit(Map<VaultKey, byte[]> writes) throws SQLException {
+        long now = System.currentTimeMillis();
+        try (PreparedStatement upsert = writeConnection.prepareStatement("INSERT OR REPLACE INTO vaults (holder, number, data, modified) VALUES (?, ?, ?, ?)");
+             PreparedStatement delete = writeConnection.prepareStatement("DELETE FROM vaults WHERE holder = ? AND number = ?")) {
+            int count = 0;
+            Iterator<Map.Entry<VaultKey, byte[]>> iterator = writes.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<VaultKey, byte[]> entry = iterator.next();
+                VaultKey key = entry.getKey();
+                if (entry.getValue() == DELETED) {
+                    delete.setString(1, key.getHolder());
+                    delete.setInt(2, key.getNumber());
+                    delete.addBatch();
+                } else {
+                    upsert.setString(1, key.getHolder());
+                    upsert.setInt(2, key.getNumber());
+                    upsert.setBytes(3, entry.getValue());
+                    upsert.setLong(4, now);
+                    upsert.addBatch();
+                }
+                if (++count % batchSize == 0 || !iterator.hasNext()) {
+                    upsert.executeBatch();
+                    delete.executeBatch();
+                }
+            }
+            writeConnection.commit();
+            return count;
+        }
+    }
+
+    // Must hold writeLock.
+    private void requeue() {
+        synchronized (lock) {
+            // Put the failed writes back in front of anything queued since.
+            LinkedHashMap<VaultKey, byte[]> retry = new LinkedHashMap<>(inFlight);
+            for (Map.Entry<VaultKey, byte[]> entry : pending.entrySet()) {
+                retry.remove(entry.getKey());
+                retry.put(entry.getKey(), entry.getValue());
+            }
+            pending = retry;
+            inFlight = new LinkedHashMap<>();
+        }
+    }
+
+    /**
+     * Writes every vault of a failing batch in a transaction of its own, so one bad vault can't hold back
+     * the rest. Must hold writeLock.
+     */
+    private void commitSeparately() {
+        int failed = 0;
+        for (Map.Entry<VaultKey, byte[]> entry : inFlight.entrySet()) {
+            try {
+                commit(Collections.singletonMap(entry.getKey(), entry.getValue()));
+            } catch (SQLException e) {
+                rollback();
+                failed++;
+                parkFailed(entry.getKey(), entry.getValue(), e);
+            }
+        }
+        PlayerVaults.debug("Wrote " + (inFlight.size() - failed) + " of " + inFlight.size() + " vaults one at a time");
+    }
+
+    /**
+     * Gives up on writing a vault to the database. A saved vault is written to the failed folder, so it
+     * survives a restart, and either way the write keeps being served to reads until the vault is saved again.
+     */
+    private void parkFailed(VaultKey key, byte[] data, SQLException cause) {
+        synchronized (lock) {
+            if (pending.containsKey(key)) {
+                // Saved again meanwhile, that write gets its own chance.
+                return;
+            }
+            parked.put(key, data);
+        }
+        if (data == DELETED) {
+            plugin.getLogger().log(Level.SEVERE, "Could not delete vault " + key + " from the database", cause);
+            return;
+        }
+        File aside = new File(getFailedFolder(), key.getHolder() + '.' + key.getNumber() + ".vault");
+        try {
+            aside.getParentFile().mkdirs();
+            Files.write(aside.toPath(), data);
+            plugin.getLogger().log(Level.SEVERE, "Could not write vault " + key + " to the database, saved it to " + aside + " instead", cause);
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Could not write vault " + key + " to the database or to " + aside + ", it only remains in memory", cause);
+        }
+    }
+
+    private File getFailedFolder() {
+        return new File(plugin.getDataFolder(), "failed-writes");
+    }
+
+    private void rollback() {
+        try {
+            writeConnection.rollback();
+        } catch (SQLException ignored) {
+        }
+    }
+
+    // Pauses the writer longer after every batch failed in a row.
+    private void backoff() {
+        if (!running) {
+            return;
+        }
+        try {
+            Thread.sleep(Math.min(MAX_BACKOFF, flushInterval << (failures - 1)));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * PlayerVaultsX
+ * Copyright (C) 2013 Trent Hensler
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.drtshock.playervaults.storage;
+
+/**
+ * Identifies a single vault: its holder and its number.
+ */
+public final class VaultKey {
+
+    private final String holder;
+    private final int number;
+    private final int hash;
+
+    public VaultKey(String holder, int number) {
+        this.holder = holder;
+        this.number = number;
+        this.hash = 31 * holder.hashCode() + number;
+    }
+
+    /**
+     * Gets the holder of the vault.
+     *
+     * @return the holder
+     */
+    public String getHolder() {
+        return this.holder;
+    }
+
+    /**
+     * Gets the vault number.
+     *
+     * @return the vault number
+     */
+    public int getNumber() {
+        return this.number;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof VaultKey)) {
+            return false;
+        }
+        VaultKey other = (VaultKey) o;
+        return this.number == other.number && this.holder.equals(other.holder);
+    }
+
+    @Override
+    public int hashCode() {
+        return this.hash;
+    }
+
+    @Override
+    public String toString() {
+        return this.holder + " " + this.number;
+    }
+}
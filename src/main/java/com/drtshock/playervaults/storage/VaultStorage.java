@@ -0,0 +1,131 @@
+/*
+ * PlayerVaultsX
+ * Copyright (C) 2013 Trent Hensler
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.drtshock.playervaults.storage;
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * A place to keep serialized vaults. Implementations only ever see raw vault blobs as produced by
+ * {@link com.drtshock.playervaults.vaultmanagement.CardboardBoxSerialization}, they never touch items.
+ */
+public interface VaultStorage {
+
+    /**
+     * Gets the name of this storage, as used for the storage type in the config.
+     *
+     * @return the storage name
+     */
+    String getName();
+
+    /**
+     * Loads the raw data of a vault.
+     *
+     * @param holder the vault holder
+     * @param number the vault number
+     * @return the stored data, or null if the vault doesn't exist
+     * @throws IOException if the data could not be read
+     */
+    byte[] load(String holder, int number) throws IOException;
+
+    /**
+     * Saves the raw data of a vault, replacing anything already stored.
+     *
+     * @param holder the vault holder
+     * @param number the vault number
+     * @param data the data to store
+     * @throws IOException if the data could not be written
+     */
+    void save(String holder, int number, byte[] data) throws IOException;
+
+    /**
+     * Deletes a single vault. Does nothing if the vault doesn't exist.
+     *
+     * @param holder the vault holder
+     * @param number the vault number
+     * @throws IOException if the vault could not be deleted
+     */
+    void delete(String holder, int number) throws IOException;
+
+    /**
+     * Deletes every vault belonging to a holder.
+     *
+     * @param holder the vault holder
+     * @throws IOException if the vaults could not be deleted
+     */
+    void deleteAll(String holder) throws IOException;
+
+    /**
+     * Gets the numbers of all vaults a holder has.
+     *
+     * @param holder the vault holder
+     * @return the vault numbers, empty if none
+     * @throws IOException if the vaults could not be listed
+     */
+    Set<Integer> list(String holder) throws IOException;
+
+    /**
+     * Checks if a vault exists.
+     *
+     * @param holder the vault holder
+     * @param number the vault number
+     * @return true if the vault exists
+     * @throws IOException if the storage could not be checked
+     */
+    boolean exists(String holder, int number) throws IOException;
+
+    /**
+     * Gets every holder that has vault data.
+     *
+     * @return all holders
+     * @throws IOException if the holders could not be listed
+     */
+    Set<String> getHolders() throws IOException;
+
+    /**
+     * Gets the last time any vault of this holder was changed.
+     *
+     * @param holder the vault holder
+     * @return time in milliseconds since the epoch, or 0 if unknown
+     * @throws IOException if the storage could not be checked
+     */
+    long getLastModified(String holder) throws IOException;
+
+    /**
+     * Hints that a holder's vaults are likely to be used soon. Called asynchronously.
+     *
+     * @param holder the vault holder
+     */
+    default void preload(String holder) {
+    }
+
+    /**
+     * Hints that a holder's vaults are no longer likely to be used.
+     *
+     * @param holder the vault holder
+     */
+    default void unload(String holder) {
+    }
+
+    /**
+     * Closes this storage, flushing anything not yet written.
+     */
+    default void close() {
+    }
+}
@@ -19,8 +19,11 @@
 package com.drtshock.playervaults.tasks;
 
 import com.drtshock.playervaults.PlayerVaults;
+import com.drtshock.playervaults.storage.VaultStorage;
+import com.drtshock.playervaults.vaultmanagement.VaultManager;
 
-import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
 
 public class Cleanup implements Runnable {
 
@@ -32,21 +35,20 @@ public class Cleanup implements Runnable {
 
     @Override
     public void run() {
-        File directory = PlayerVaults.getInstance().getVaultData();
-        if (!directory.exists()) {
-            // folder doesn't exist, don't run
-            return;
-        }
-
+        VaultManager vaults = VaultManager.getInstance();
+        VaultStorage storage = vaults.getStorage();
         long time = System.currentTimeMillis();
-        for (File file : directory.listFiles()) {
-            if (file.isDirectory()) {
-                continue;
-            }
-            if (time - file.lastModified() > diff) {
-                PlayerVaults.getInstance().getLogger().info("Deleting vault file (cleanup): " + file.getName());
-                file.delete();
+        try {
+            for (String holder : storage.getHolders()) {
+                // A save still waiting to be written means the holder isn't inactive at all.
+                if (time - storage.getLastModified(holder) > diff && !vaults.hasQueuedSaves(holder)) {
+                    PlayerVaults.getInstance().getLogger().info("Deleting vaults (cleanup): " + holder);
+                    // Through the manager, so queued saves and cached contents go too.
+                    vaults.deleteAllVaults(holder);
+                }
             }
+        } catch (IOException e) {
+            PlayerVaults.getInstance().getLogger().log(Level.SEVERE, "Failed to clean up vaults", e);
         }
     }
 }
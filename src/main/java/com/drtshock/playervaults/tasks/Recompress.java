@@ -0,0 +1,108 @@
+/*
+ * PlayerVaultsX
+ * Copyright (C) 2013 Trent Hensler
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.drtshock.playervaults.tasks;
+
+import com.drtshock.playervaults.PlayerVaults;
+import com.drtshock.playervaults.storage.VaultStorage;
+import com.drtshock.playervaults.vaultmanagement.VaultCompression;
+import com.drtshock.playervaults.vaultmanagement.VaultManager;
+import org.bukkit.command.CommandSender;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+/**
+ * Rewrites every stored vault with the current compression settings, training a new dictionary first if
+ * the configured codec uses one. The rewrites go through the save queue, so they never race player saves.
+ */
+public class Recompress implements Runnable {
+
+    private static final AtomicBoolean RUNNING = new AtomicBoolean();
+    private final PlayerVaults plugin;
+    private final CommandSender sender;
+
+    public Recompress(PlayerVaults plugin, CommandSender sender) {
+        this.plugin = plugin;
+        this.sender = sender;
+    }
+
+    /**
+     * Marks a recompress as started.
+     *
+     * @return false if one is already running
+     */
+    public static boolean start() {
+        return RUNNING.compareAndSet(false, true);
+    }
+
+    @Override
+    public void run() {
+        try {
+            VaultStorage storage = VaultManager.getInstance().getStorage();
+            VaultCompression compression = VaultCompression.getInstance();
+            if (compression.isDictionaryWanted()) {
+                train(storage, compression);
+            }
+
+            int queued = 0;
+            for (String holder : storage.getHolders()) {
+                for (int number : storage.list(holder)) {
+                    if (!VaultManager.getInstance().recompressVault(holder, number)) {
+                        plugin.getLogger().warning("Recompress stopped early, the plugin is shutting down.");
+                        return;
+                    }
+                    queued++;
+                }
+            }
+            plugin.getLogger().info("Queued " + queued + " vaults for recompression.");
+            this.plugin.getTL().recompressComplete().title().with("count", String.valueOf(queued)).send(sender);
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Failed to recompress vaults", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            RUNNING.set(false);
+        }
+    }
+
+    private void train(VaultStorage storage, VaultCompression compression) throws IOException {
+        int samples = plugin.getConf().getStorage().getCompression().getDictionarySamples();
+        List<byte[]> vaults = new ArrayList<>();
+        sampling:
+        for (String holder : storage.getHolders()) {
+            for (int number : storage.list(holder)) {
+                if (vaults.size() >= samples) {
+                    break sampling;
+                }
+                byte[] data = storage.load(holder, number);
+                if (data != null) {
+                    vaults.add(data);
+                }
+            }
+        }
+
+        plugin.getLogger().info("Training compression dictionary from " + vaults.size() + " vaults.");
+        if (compression.train(vaults) == 0) {
+            plugin.getLogger().warning("No repeated items found to train a compression dictionary from, using plain deflate.");
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * PlayerVaultsX
+ * Copyright (C) 2013 Trent Hensler
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.drtshock.playervaults.vaultmanagement;
+
+import org.bukkit.ChatColor;
+import org.bukkit.Material;
+import org.bukkit.NamespacedKey;
+import org.bukkit.enchantments.Enchantment;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.ItemMeta;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * The blocked item list, compiled once per load. An entry is a material name, or {@code *} for any material,
+ * optionally followed by conditions the item must all meet, separated by {@code ;}:
+ * <pre>
+ * name=&lt;regex&gt;     display name, without colors
+ * lore=&lt;regex&gt;     any lore line, without colors
+ * enchant=&lt;name&gt;   has the enchantment, e.g. sharpness
+ * model=&lt;number&gt;   custom model data, 1.14+
+ * </pre>
+ * Items are first checked against the materials that have any rule, so item meta is only ever looked at for
+ * materials that may be blocked.
+ */
+public final class BlockedItems {
+
+    /**
+     * Blocks nothing.
+     */
+    public static final BlockedItems NONE = new BlockedItems(EnumSet.noneOf(Material.class), new EnumMap<>(Material.class), Collections.emptyList());
+
+    // Only on servers with custom model data, 1.14 and later.
+    private static final Method HAS_MODEL = getMetaMethod("hasCustomModelData");
+    private static final Method GET_MODEL = getMetaMethod("getCustomModelData");
+
+    // Blocked whatever their meta.
+    private final Set<Material> materials;
+    private final Map<Material, List<Rule>> rules;
+    private final List<Rule> anyMaterial;
+
+    private BlockedItems(Set<Material> materials, Map<Material, List<Rule>> rules, List<Rule> anyMaterial) {
+        this.materials = materials;
+        this.rules = rules;
+        this.anyMaterial = anyMaterial;
+    }
+
+    /**
+     * Compiles the blocked item list.
+     *
+     * @param entries the entries, as in the config
+     * @param logger where to report entries that can't be used
+     * @return the compiled list
+     */
+    public static BlockedItems compile(List<String> entries, Logger logger) {
+        Set<Material> materials = EnumSet.noneOf(Material.class);
+        Map<Material, List<Rule>> rules = new EnumMap<>(Material.class);
+        List<Rule> anyMaterial = new ArrayList<>();
+        for (String entry : entries) {
+            String[] parts = entry.split(";");
+            String name = parts[0].trim();
+            Material material = name.equals("*") ? null : Material.matchMaterial(name);
+            if (material == null && !name.equals("*")) {
+                logger.warning("Unknown material in blocked items: " + entry);
+                continue;
+            }
+
+            Rule rule;
+            try {
+                rule = parts.length == 1 ? null : Rule.parse(parts);
+            } catch (IllegalArgumentException e) {
+                logger.warning("Invalid blocked item " + entry + ": " + e.getMessage());
+                continue;
+            }
+
+            if (rule == null && material != null) {
+                materials.add(material);
+            } else if (rule == null) {
+                logger.warning("Ignoring blocked item " + entry + ", it would block everything");
+                continue;
+            } else if (material == null) {
+                anyMaterial.add(rule);
+            } else {
+                rules.computeIfAbsent(material, m -> new ArrayList<>()).add(rule);
+            }
+            logger.log(Level.INFO, "Added {0} to list of blocked items.", entry);
+        }
+        return new BlockedItems(materials, rules, anyMaterial);
+    }
+
+    /**
+     * Checks if an item may not be put into vaults.
+     *
+     * @param item the item
+     * @return true if the item is blocked
+     */
+    public boolean isBlocked(ItemStack item) {
+        Material material = item.getType();
+        if (this.materials.contains(material)) {
+            return true;
+        }
+        List<Rule> rules = this.rules.get(material);
+        if ((rules == null && this.anyMaterial.isEmpty()) || !item.hasItemMeta()) {
+            return false;
+        }
+
+        ItemMeta meta = item.getItemMeta();
+        return matchesAny(rules, meta) || matchesAny(this.anyMaterial, meta);
+    }
+
+    private static boolean matchesAny(List<Rule> rules, ItemMeta meta) {
+        if (rules != null) {
+            for (Rule rule : rules) {
+                if (rule.matches(meta)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks if a material is blocked whatever the item's meta.
+     *
+     * @param material the material
+     * @return true if the material is blocked
+     */
+    public boolean isBlocked(Material material) {
+        return this.materials.contains(material);
+    }
+
+    /**
+     * Gets every material with a blocking rule.
+     *
+     * @return the materials
+     */
+    public Set<Material> getMaterials() {
+        Set<Material> all = EnumSet.noneOf(Material.class);
+        all.addAll(this.materials);
+        all.addAll(this.rules.keySet());
+        return all;
+    }
+
+    private static Method getMetaMethod(String name) {
+        try {
+            return ItemMeta.class.getMethod(name);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Conditions on an item's meta, all of which have to match.
+     */
+    private static final class Rule {
+
+        private Pattern name;
+        private Pattern lore;
+        private Enchantment enchant;
+        private Integer model;
+
+        private static Rule parse(String[] parts) {
+            Rule rule = new Rule();
+            for (int i = 1; i < parts.length; i++) {
+                String part = parts[i];
+                int split = part.indexOf('=');
+                if (split < 0) {
+                    throw new IllegalArgumentException("expected key=value but got " + part);
+                }
+                String key = part.substring(0, split).trim().toLowerCase(Locale.ROOT);
+                String value = part.substring(split + 1).trim();
+                try {
+                    switch (key) {
+                        case "name":
+                            rule.name = Pattern.compile(value);
+                            break;
+                        case "lore":
+                            rule.lore = Pattern.compile(value);
+                            break;
+                        case "enchant":
+                            rule.enchant = Enchantment.getByKey(NamespacedKey.minecraft(value.toLowerCase(Locale.ROOT)));
+                            if (rule.enchant == null) {
+                                throw new IllegalArgumentException("unknown enchantment " + value);
+                            }
+                            break;
+                        case "model":
+                            if (HAS_MODEL == null) {
+                                throw new IllegalArgumentException("custom model data needs 1.14 or later");
+                            }
+                            rule.model = Integer.parseInt(value);
+                            break;
+                        default:
+                            throw new IllegalArgumentException("unknown condition " + key);
+                    }
+                } catch (PatternSyntaxException | NumberFormatException e) {
+                    throw new IllegalArgumentException(e.getMessage(), e);
+                }
+            }
+            return rule;
+        }
+
+        private boolean matches(ItemMeta meta) {
+            if (this.name != null && !(meta.hasDisplayName() && this.name.matcher(ChatColor.stripColor(meta.getDisplayName())).find())) {
+                return false;
+            }
+            if (this.lore != null && !(meta.hasLore() && anyLineMatches(meta.getLore()))) {
+                return false;
+            }
+            if (this.enchant != null && !meta.getEnchants().containsKey(this.enchant)) {
+                return false;
+            }
+            return this.model == null || this.model.equals(getModel(meta));
+        }
+
+        private boolean anyLineMatches(List<String> lines) {
+            for (String line : lines) {
+                if (this.lore.matcher(ChatColor.stripColor(line)).find()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static Integer getModel(ItemMeta meta) {
+            try {
+                return (Boolean) HAS_MODEL.invoke(meta) ? (Integer) GET_MODEL.invoke(meta) : null;
+            } catch (ReflectiveOperationException e) {
+                return null;
+            }
+        }
+    }
+}
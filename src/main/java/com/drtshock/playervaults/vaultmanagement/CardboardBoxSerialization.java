@@ -7,61 +7,543 @@ import org.bukkit.inventory.ItemStack;
 import org.kitteh.cardboardbox.CardboardBox;
 import org.yaml.snakeyaml.external.biz.base64Coder.Base64Coder;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.logging.Level;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 public class CardboardBoxSerialization {
-    public static String toStorage(Inventory inventory, String target) {
+    private static final int MAGIC = 0x50564C54; // "PVLT"
+    private static final byte VERSION = 2;
+    private static final int HEADER_SIZE = 4 + 1 + 1;
+    private static final int MAX_SLOTS = 0xFFFF;
+    private static final int MAX_BODY_SIZE = 64 * 1024 * 1024;
+    private static final ItemStack[] EMPTY = new ItemStack[0];
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    public static byte[] toStorage(Inventory inventory, String target) {
+        return toStorage(inventory.getContents(), target);
+    }
+
+    public static byte[] toStorage(ItemStack[] contents, String target) {
         try {
-            return Base64Coder.encodeLines(writeInventory(inventory.getContents()));
+            return writeInventory(contents);
         } catch (IOException e) {
             throw PlayerVaults.getInstance().addException(new IllegalStateException("Failed to save items for " + target, e));
         }
     }
 
-    public static ItemStack[] fromStorage(String data, String target) {
-        if (data == null || data.isEmpty()) {
-            ItemStack[] i = new ItemStack[6 * 9];
-            for (int x = 0; x < i.length; x++) {
-                i[x] = new ItemStack(Material.AIR);
-            }
-            return i;
+    /**
+     * Reads vault contents. Empty slots are null, and an empty vault is an empty array shared by all callers.
+     *
+     * @param data the stored data, may be null
+     * @param target holder of the vault, for error messages
+     * @return the contents, or null if the data could not be read
+     */
+    public static ItemStack[] fromStorage(byte[] data, String target) {
+        VaultContents contents = readContents(data, target);
+        if (contents == null) {
+            return null;
+        }
+        return contents.isEmpty() ? EMPTY : contents.toArray();
+    }
+
+    /**
+     * Reads vault contents without deserializing any items yet, see {@link VaultContents}.
+     *
+     * @param data the stored data, may be null
+     * @param target holder of the vault, for error messages
+     * @return the contents, or null if the data could not be read
+     */
+    public static VaultContents readContents(byte[] data, String target) {
+        if (data == null || data.length == 0) {
+            return VaultContents.EMPTY;
         }
         try {
-            return readInventory(Base64Coder.decodeLines(data));
+            return index(data);
         } catch (IOException e) {
-            PlayerVaults.getInstance().addException(new IllegalStateException("Failed to save items for " + target, e));
+            PlayerVaults.getInstance().addException(new IllegalStateException("Failed to load items for " + target, e));
             PlayerVaults.getInstance().getLogger().log(Level.SEVERE, "Failed to load items for " + target, e);
             return null;
         }
     }
 
+    /**
+     * Checks if data is a complete vault in any known format, without deserializing any items.
+     *
+     * @param data the stored data
+     * @return true if the data can be read
+     */
+    public static boolean isReadable(byte[] data) {
+        try {
+            return data.length > 0 && index(data) != null;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Serializes vault contents into the binary vault format:
+     * <pre>
+     * int    magic ("PVLT")
+     * byte   format version
+     * byte   codec, see {@link VaultCompression}
+     * int    dictionary id, deflate-dictionary only
+     * int    uncompressed body length, compressed codecs only
+     * body, possibly compressed:
+     *   ushort slot count
+     *   byte[] bitmap of occupied slots, one bit per slot
+     *   then per occupied slot: int length, CardboardBox item bytes
+     * </pre>
+     * Empty slots only cost their bit in the bitmap. Format version 1 had no codec byte and an uncompressed body.
+     *
+     * @param contents the contents
+     * @return the serialized contents
+     * @throws IOException if the contents could not be serialized
+     */
     public static byte[] writeInventory(ItemStack[] contents) throws IOException {
-        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-        DataOutputStream out = new DataOutputStream(bytes);
-        out.writeInt(contents.length);
-        for (ItemStack content : contents) {
-            byte[] item = CardboardBox.serializeItem(content);
-            out.writeInt(item.length);
-            out.write(item);
-        }
-        out.close();
-        return bytes.toByteArray();
-    }
-
-    private static ItemStack[] readInventory(byte[] data) throws IOException {
-        DataInputStream input = new DataInputStream(new ByteArrayInputStream(data));
-        ItemStack[] contents = new ItemStack[input.readInt()];
-        for (int i = 0; i < contents.length; i++) {
-            int len = input.readInt();
-            byte[] itemBytes = new byte[len];
-            input.readFully(itemBytes);
-            contents[i] = CardboardBox.deserializeItem(itemBytes);
-        }
-        return contents;
+        if (contents.length > MAX_SLOTS) {
+            throw new IOException("Too many slots: " + contents.length);
+        }
+        byte[][] items = new byte[contents.length][];
+        byte[] bitmap = new byte[(contents.length + 7) >> 3];
+        int size = 2 + bitmap.length;
+        for (int slot = 0; slot < contents.length; slot++) {
+            ItemStack item = contents[slot];
+            if (item == null || item.getType() == Material.AIR) {
+                continue;
+            }
+            items[slot] = CardboardBox.serializeItem(item);
+            bitmap[slot >> 3] |= 1 << (slot & 7);
+            size += 4 + items[slot].length;
+        }
+
+        VaultCompression compression = VaultCompression.getInstance();
+        if (compression == null || compression.getCodec() == VaultCompression.NONE) {
+            // Straight into the one array that gets stored.
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + size);
+            buffer.putInt(MAGIC).put(VERSION).put(VaultCompression.NONE);
+            writeBody(buffer, contents.length, bitmap, items);
+            return buffer.array();
+        }
+        Scratch scratch = SCRATCH.get();
+        ByteBuffer body = ByteBuffer.wrap(scratch.body(size), 0, size);
+        writeBody(body, contents.length, bitmap, items);
+        return pack(scratch, body.array(), 0, size);
+    }
+
+    private static void writeBody(ByteBuffer buffer, int slots, byte[] bitmap, byte[][] items) {
+        buffer.putShort((short) slots).put(bitmap);
+        for (byte[] item : items) {
+            if (item != null) {
+                buffer.putInt(item.length).put(item);
+            }
+        }
+    }
+
+    /**
+     * Wraps a body into a container, compressed as currently configured if that makes it smaller.
+     */
+    private static byte[] pack(Scratch scratch, byte[] body, int offset, int length) {
+        VaultCompression compression = VaultCompression.getInstance();
+        byte codec = compression == null ? VaultCompression.NONE : compression.getCodec();
+        if (codec != VaultCompression.NONE) {
+            Integer dictionaryId = codec == VaultCompression.DEFLATE_DICTIONARY ? compression.getActiveDictionary() : null;
+            byte[] dictionary = dictionaryId == null ? null : compression.getDictionary(dictionaryId);
+            if (dictionary == null) {
+                codec = VaultCompression.DEFLATE;
+            }
+            int header = HEADER_SIZE + (dictionary == null ? 4 : 8);
+            // Only worth it if the result is smaller than storing the body as is.
+            int limit = length + HEADER_SIZE - header - 1;
+            byte[] out = scratch.out(limit);
+            int deflated = deflate(scratch, body, offset, length, compression.getLevel(), dictionary, out, limit);
+            if (deflated >= 0) {
+                ByteBuffer buffer = ByteBuffer.allocate(header + deflated);
+                buffer.putInt(MAGIC).put(VERSION).put(codec);
+                if (dictionary != null) {
+                    buffer.putInt(dictionaryId);
+                }
+                buffer.putInt(length).put(out, 0, deflated);
+                return buffer.array();
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + length);
+        buffer.putInt(MAGIC).put(VERSION).put(VaultCompression.NONE).put(body, offset, length);
+        return buffer.array();
+    }
+
+    /**
+     * Deflates data, giving up once the output reaches a limit.
+     *
+     * @return the deflated length, or -1 if it would not fit within the limit
+     */
+    private static int deflate(Scratch scratch, byte[] data, int offset, int length, int level, byte[] dictionary, byte[] out, int limit) {
+        if (limit <= 0) {
+            return -1;
+        }
+        Deflater deflater = scratch.deflater(level);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            int written = 0;
+            while (!deflater.finished() && written < limit) {
+                written += deflater.deflate(out, written, limit - written);
+            }
+            return deflater.finished() ? written : -1;
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    private static byte[] inflate(ByteBuffer in, int length, byte[] dictionary) throws IOException {
+        Inflater inflater = SCRATCH.get().inflater;
+        try {
+            if (in.hasArray()) {
+                inflater.setInput(in.array(), in.arrayOffset() + in.position(), in.remaining());
+            } else {
+                byte[] input = new byte[in.remaining()];
+                in.get(input);
+                inflater.setInput(input);
+            }
+            // Exactly sized, the contents keep referring to it.
+            byte[] out = new byte[length];
+            int position = 0;
+            while (position < length) {
+                int read = inflater.inflate(out, position, length - position);
+                if (read == 0) {
+                    if (inflater.needsDictionary() && dictionary != null) {
+                        inflater.setDictionary(dictionary);
+                        dictionary = null;
+                        continue;
+                    }
+                    break;
+                }
+                position += read;
+            }
+            if (position != length) {
+                throw new IOException("Corrupt vault data, compressed body is truncated");
+            }
+            return out;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt vault data", e);
+        } finally {
+            inflater.reset();
+        }
+    }
+
+    /**
+     * Per thread (de)compressors and scratch space, so saving or loading a vault does not allocate
+     * anything besides the data it returns. Saves mostly run on the single save queue thread.
+     */
+    private static final class Scratch {
+        // Anything bigger is allocated for the one call instead of kept around.
+        private static final int MAX_RETAINED = 1024 * 1024;
+        private final Inflater inflater = new Inflater();
+        private Deflater deflater;
+        private int level;
+        private byte[] body = new byte[8192];
+        private byte[] out = new byte[8192];
+
+        private Deflater deflater(int level) {
+            if (this.deflater == null || this.level != level) {
+                if (this.deflater != null) {
+                    this.deflater.end();
+                }
+                this.deflater = new Deflater(level);
+                this.level = level;
+            }
+            return this.deflater;
+        }
+
+        private byte[] body(int size) {
+            if (size <= this.body.length) {
+                return this.body;
+            }
+            byte[] body = new byte[size];
+            if (size <= MAX_RETAINED) {
+                this.body = body;
+            }
+            return body;
+        }
+
+        private byte[] out(int size) {
+            size = Math.max(size, 0);
+            if (size <= this.out.length) {
+                return this.out;
+            }
+            byte[] out = new byte[size];
+            if (size <= MAX_RETAINED) {
+                this.out = out;
+            }
+            return out;
+        }
+    }
+
+    /**
+     * Finds the items in vault data in any format this plugin has written: the binary vault format, the older
+     * length-prefixed format, or that same format still Base64 encoded as it was in YAML.
+     *
+     * @param data the serialized contents
+     * @return the contents
+     * @throws IOException if the data is not a vault
+     */
+    static VaultContents index(byte[] data) throws IOException {
+        return index(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Finds the items in vault data held in any buffer, heap or direct. The contents refer to the buffer
+     * rather than copying out of it, unless it has to be inflated.
+     *
+     * @param buffer the serialized contents, from position 0
+     * @return the contents
+     * @throws IOException if the data is not a vault
+     */
+    static VaultContents index(ByteBuffer buffer) throws IOException {
+        try {
+            if (isContainer(buffer)) {
+                return indexBody(unpack(buffer));
+            }
+            return indexLegacy(legacy(buffer));
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Corrupt vault data", e);
+        }
+    }
+
+    private static boolean isContainer(ByteBuffer buffer) {
+        return buffer.remaining() >= 4 && buffer.getInt(0) == MAGIC;
+    }
+
+    private static ByteBuffer legacy(ByteBuffer buffer) {
+        // The old format starts with a big endian slot count, so a first byte other than zero is Base64 text.
+        if (buffer.get(0) != 0) {
+            byte[] text = new byte[buffer.limit()];
+            buffer.get(text);
+            return ByteBuffer.wrap(Base64Coder.decodeLines(new String(text, StandardCharsets.US_ASCII)));
+        }
+        return buffer;
+    }
+
+    /**
+     * Gets the body of a container, inflating it if needed.
+     *
+     * @param buffer the container
+     * @return the body, positioned at the slot count
+     * @throws IOException if the container is not readable
+     */
+    private static ByteBuffer unpack(ByteBuffer buffer) throws IOException {
+        buffer.position(4);
+        byte version = buffer.get();
+        if (version == 1) {
+            return buffer;
+        }
+        if (version != VERSION) {
+            throw new IOException("Unknown vault format version " + version);
+        }
+        byte codec = buffer.get();
+        switch (codec) {
+            case VaultCompression.NONE:
+                return buffer;
+            case VaultCompression.DEFLATE:
+                return ByteBuffer.wrap(inflate(buffer, readBodyLength(buffer), null));
+            case VaultCompression.DEFLATE_DICTIONARY:
+                int id = buffer.getInt();
+                VaultCompression compression = VaultCompression.getInstance();
+                byte[] dictionary = compression == null ? null : compression.getDictionary(id);
+                if (dictionary == null) {
+                    throw new IOException("Missing compression dictionary " + Integer.toHexString(id) + ", restore dictionaries/" + Integer.toHexString(id) + ".dict to read this vault");
+                }
+                return ByteBuffer.wrap(inflate(buffer, readBodyLength(buffer), dictionary));
+            default:
+                throw new IOException("Unknown vault compression codec " + codec);
+        }
+    }
+
+    /**
+     * Gets the length of the body of stored data once uncompressed, from its header alone.
+     *
+     * @param data the stored data
+     * @return the uncompressed body length, or the length of the data if it isn't compressed
+     */
+    static int getBodyLength(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        if (data.length < HEADER_SIZE + 4 || !isContainer(buffer) || buffer.get(4) != VERSION) {
+            return data.length;
+        }
+        byte codec = buffer.get(5);
+        int header = codec == VaultCompression.DEFLATE ? HEADER_SIZE : codec == VaultCompression.DEFLATE_DICTIONARY ? HEADER_SIZE + 4 : -1;
+        if (header < 0 || data.length < header + 4) {
+            return data.length;
+        }
+        int length = buffer.getInt(header);
+        return length < 0 || length > MAX_BODY_SIZE ? data.length : length;
+    }
+
+    private static int readBodyLength(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        if (length < 0 || length > MAX_BODY_SIZE) {
+            throw new IOException("Corrupt vault data, body length " + length);
+        }
+        return length;
+    }
+
+    private static VaultContents indexBody(ByteBuffer buffer) {
+        int slots = buffer.getShort() & 0xFFFF;
+        int bitmap = buffer.position();
+        int items = bitmap + ((slots + 7) >> 3);
+        if (items > buffer.limit()) {
+            throw new BufferUnderflowException();
+        }
+        if (items == buffer.limit()) {
+            return VaultContents.EMPTY;
+        }
+
+        int[] offsets = new int[slots];
+        int[] lengths = new int[slots];
+        buffer.position(items);
+        for (int slot = 0; slot < slots; slot++) {
+            if ((buffer.get(bitmap + (slot >> 3)) & (1 << (slot & 7))) != 0) {
+                offsets[slot] = skipItem(buffer);
+                lengths[slot] = buffer.position() - offsets[slot];
+            } else {
+                offsets[slot] = -1;
+            }
+        }
+        return new VaultContents(buffer, offsets, lengths, false);
+    }
+
+    private static VaultContents indexLegacy(ByteBuffer buffer) throws IOException {
+        int slots = readLegacySlots(buffer);
+        int[] offsets = new int[slots];
+        int[] lengths = new int[slots];
+        for (int slot = 0; slot < slots; slot++) {
+            offsets[slot] = skipItem(buffer);
+            lengths[slot] = buffer.position() - offsets[slot];
+        }
+        return new VaultContents(buffer, offsets, lengths, true);
+    }
+
+    private static int readLegacySlots(ByteBuffer buffer) throws IOException {
+        int slots = buffer.getInt();
+        if (slots < 0 || slots > MAX_SLOTS) {
+            throw new IOException("Corrupt vault data, slot count " + slots);
+        }
+        return slots;
+    }
+
+    /**
+     * Skips over a length-prefixed item.
+     *
+     * @return where the item starts in the buffer
+     */
+    private static int skipItem(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        int start = buffer.position();
+        buffer.position(start + length);
+        return start;
+    }
+
+    private static byte[] readItem(ByteBuffer buffer) {
+        byte[] item = new byte[buffer.getInt()];
+        buffer.get(item);
+        return item;
+    }
+
+    /**
+     * Gets the serialized items of a vault without deserializing them.
+     *
+     * @param data the stored data
+     * @return the item payloads of all stored slots
+     * @throws IOException if the data is not a vault
+     */
+    static List<byte[]> readItems(byte[] data) throws IOException {
+        try {
+            List<byte[]> items = new ArrayList<>();
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            int count;
+            if (isContainer(buffer)) {
+                buffer = unpack(buffer);
+                int slots = buffer.getShort() & 0xFFFF;
+                count = 0;
+                for (int i = 0; i < (slots + 7) >> 3; i++) {
+                    count += Integer.bitCount(buffer.get() & 0xFF);
+                }
+            } else {
+                buffer = legacy(buffer);
+                count = readLegacySlots(buffer);
+            }
+            for (int i = 0; i < count; i++) {
+                items.add(readItem(buffer));
+            }
+            return items;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Corrupt vault data", e);
+        }
+    }
+
+    /**
+     * Rewrites a stored vault with the current compression settings. Vaults already stored in the current
+     * format are left alone. Blobs of the old format are deserialized to drop their empty slots.
+     *
+     * @param data the stored data
+     * @return the rewritten data, or null if nothing would change
+     * @throws IOException if the data is not a vault
+     */
+    static byte[] recode(byte[] data) throws IOException {
+        byte[] recoded;
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            if (!isContainer(buffer)) {
+                recoded = writeInventory(indexLegacy(legacy(buffer)).toArray());
+            } else {
+                ByteBuffer body = unpack(buffer);
+                recoded = pack(SCRATCH.get(), body.array(), body.arrayOffset() + body.position(), body.remaining());
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Corrupt vault data", e);
+        }
+        return Arrays.equals(recoded, data) ? null : recoded;
+    }
+
+    /**
+     * Gets stored data in a form that can be indexed without inflating or decoding text, for keeping it
+     * around to index more than once.
+     *
+     * @param data the stored data
+     * @return an uncompressed container, binary old format data, or the data itself if already either
+     * @throws IOException if the data is not a vault
+     */
+    static byte[] uncompressed(byte[] data) throws IOException {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            if (!isContainer(buffer)) {
+                ByteBuffer legacy = legacy(buffer);
+                return legacy == buffer ? data : legacy.array();
+            }
+            byte version = data.length > 4 ? data[4] : 0;
+            if (version == 1 || version == VERSION && data.length > 5 && data[5] == VaultCompression.NONE) {
+                return data;
+            }
+            ByteBuffer body = unpack(buffer);
+            ByteBuffer container = ByteBuffer.allocate(HEADER_SIZE + body.remaining());
+            container.putInt(MAGIC).put(VERSION).put(VaultCompression.NONE).put(body);
+            return container.array();
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Corrupt vault data", e);
+        }
     }
 }
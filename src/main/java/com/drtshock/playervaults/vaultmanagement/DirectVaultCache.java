@@ -0,0 +1,66 @@
+/*
+ * PlayerVaultsX
+ * Copyright (C) 2013 Trent Hensler
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.drtshock.playervaults.vaultmanagement;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps vaults off the heap as uncompressed stored data in direct buffers, so thousands of cached vaults
+ * add next to nothing for the garbage collector to trace. Every hit indexes the buffer again and items are
+ * deserialized straight out of it, nothing decoded is kept between opens.
+ * <p>
+ * Direct buffers count against -XX:MaxDirectMemorySize. Evicted buffers are freed by the garbage collector
+ * once no open vault reads from them anymore.
+ */
+class DirectVaultCache extends VaultCache<ByteBuffer> {
+
+    DirectVaultCache(long maxWeight) {
+        super(maxWeight);
+    }
+
+    @Override
+    ByteBuffer store(VaultContents contents, byte[] data) throws IOException {
+        byte[] uncompressed = CardboardBoxSerialization.uncompressed(data);
+        ByteBuffer buffer;
+        try {
+            buffer = ByteBuffer.allocateDirect(uncompressed.length);
+        } catch (OutOfMemoryError e) {
+            // Out of direct memory, not heap. The vault just doesn't get cached.
+            return null;
+        }
+        buffer.put(uncompressed);
+        buffer.flip();
+        return buffer;
+    }
+
+    @Override
+    VaultContents restore(ByteBuffer value) throws IOException {
+        return CardboardBoxSerialization.index(value.duplicate());
+    }
+
+    @Override
+    boolean retainsItems() {
+        return false;
+    }
+
+    @Override
+    int weigh(ByteBuffer value) {
+        return value.capacity();
+    }
+}
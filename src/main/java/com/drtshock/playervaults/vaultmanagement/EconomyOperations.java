@@ -23,12 +23,9 @@ import net.milkbowl.vault.economy.Economy;
 import net.milkbowl.vault.economy.EconomyResponse;
 import net.milkbowl.vault.permission.Permission;
 import org.bukkit.Bukkit;
-import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.entity.Player;
 import org.bukkit.plugin.RegisteredServiceProvider;
 
-import java.io.File;
-
 /**
  * A class that handles all economy operations.
  */
@@ -90,6 +87,27 @@ public class EconomyOperations {
         return false;
     }
 
+    /**
+     * Check if a player could pay to open a vault, without taking anything.
+     *
+     * @param player The player to check.
+     * @param number The vault number to open.
+     * @return Whether they could pay.
+     */
+    public static boolean canPayToOpen(Player player, int number) {
+        if (!PlayerVaults.getInstance().isEconomyEnabled() || player.hasPermission("playervaults.free")) {
+            return true;
+        }
+
+        double cost;
+        if (!VaultManager.getInstance().vaultExists(player.getUniqueId().toString(), number)) {
+            cost = PlayerVaults.getInstance().getConf().getEconomy().getFeeToCreate();
+        } else {
+            cost = PlayerVaults.getInstance().getConf().getEconomy().getFeeToOpen();
+        }
+        return cost == 0 || economy.has(player, cost);
+    }
+
     /**
      * Have a player pay to create a vault.
      *
@@ -123,14 +141,7 @@ public class EconomyOperations {
             return true;
         }
 
-        File playerFile = new File(PlayerVaults.getInstance().getVaultData(), player.getUniqueId().toString() + ".yml");
-        if (playerFile.exists()) {
-            YamlConfiguration playerData = YamlConfiguration.loadConfiguration(playerFile);
-            if (playerData.getString("vault" + number) == null) {
-                PlayerVaults.getInstance().getTL().vaultDoesNotExist().title().send(player);
-                return false;
-            }
-        } else {
+        if (!VaultManager.getInstance().vaultExists(player.getUniqueId().toString(), number)) {
             PlayerVaults.getInstance().getTL().vaultDoesNotExist().title().send(player);
             return false;
         }
@@ -0,0 +1,69 @@
+/*
+ * PlayerVaultsX
+ * Copyright (C) 2013 Trent Hensler
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.drtshock.playervaults.vaultmanagement;
+
+/**
+ * Keeps vault contents on the heap, items deserialized once stay deserialized for as long as their vault is
+ * cached. Weighed by an estimate of the decoded vault: its uncompressed body plus a fixed cost per item, as
+ * the compressed size says little about what the vault takes up once opened.
+ */
+class HeapVaultCache extends VaultCache<HeapVaultCache.Entry> {
+
+    // Rough heap cost of a deserialized item stack with its meta, beyond its serialized bytes.
+    private static final int ITEM_WEIGHT = 512;
+
+    HeapVaultCache(long maxWeight) {
+        super(maxWeight);
+    }
+
+    static final class Entry {
+        private final VaultContents contents;
+        private final int weight;
+
+        private Entry(VaultContents contents, int weight) {
+            this.contents = contents;
+            this.weight = weight;
+        }
+    }
+
+    @Override
+    Entry store(VaultContents contents, byte[] data) {
+        long weight = CardboardBoxSerialization.getBodyLength(data);
+        for (int slot = 0; slot < contents.getSize(); slot++) {
+            if (contents.isOccupied(slot)) {
+                weight += ITEM_WEIGHT;
+            }
+        }
+        return new Entry(contents, (int) Math.min(Integer.MAX_VALUE, weight));
+    }
+
+    @Override
+    VaultContents restore(Entry value) {
+        return value.contents;
+    }
+
+    @Override
+    boolean retainsItems() {
+        return true;
+    }
+
+    @Override
+    int weigh(Entry value) {
+        return value.weight;
+    }
+}
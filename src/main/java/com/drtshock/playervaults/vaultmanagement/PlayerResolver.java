@@ -0,0 +1,167 @@
+/*
+ * PlayerVaultsX
+ * Copyright (C) 2013 Trent Hensler
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.drtshock.playervaults.vaultmanagement;
+
+import com.drtshock.playervaults.PlayerVaults;
+import org.bukkit.Bukkit;
+import org.bukkit.OfflinePlayer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+/**
+ * Finds the UUID of a player by name without holding up the main thread. Looking up a name the server
+ * hasn't cached can mean asking Mojang, so that's done off the main thread and the answer handed back on it.
+ * <p>
+ * Names already seen are kept in {@code names.dat}: players who log in, and names looked up before. Nothing
+ * is looked up ahead of time, a name is only ever resolved once someone asks for it.
+ */
+public class PlayerResolver {
+
+    private static PlayerResolver instance;
+    private final PlayerVaults plugin;
+    private final File file;
+    // Lower case name -> UUID.
+    private final Map<String, UUID> byName = new ConcurrentHashMap<>();
+    private final Map<UUID, String> byUUID = new ConcurrentHashMap<>();
+
+    public PlayerResolver(PlayerVaults plugin) {
+        this.plugin = plugin;
+        this.file = new File(plugin.getDataFolder(), "names.dat");
+        read();
+        instance = this;
+    }
+
+    /**
+     * Get the instance of this class.
+     *
+     * @return - instance of this class.
+     */
+    public static PlayerResolver getInstance() {
+        return instance;
+    }
+
+    /**
+     * Finds the UUID of a player who has played on this server. Known names are answered right away,
+     * others are looked up off the main thread. The callback always runs on the main thread.
+     *
+     * @param name the player name
+     * @param callback given the UUID, or null if no such player has played here
+     */
+    public void resolve(String name, Consumer<UUID> callback) {
+        UUID uuid = getCached(name);
+        if (uuid != null) {
+            callback.accept(uuid);
+            return;
+        }
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+            OfflinePlayer player = Bukkit.getOfflinePlayer(name);
+            UUID found = null;
+            if (player != null && (player.isOnline() || player.hasPlayedBefore())) {
+                found = player.getUniqueId();
+                remember(found, player.getName() != null ? player.getName() : name);
+            }
+            PlayerVaults.debug("Resolved player name " + name + " to " + found);
+            UUID result = found;
+            Bukkit.getScheduler().runTask(plugin, () -> callback.accept(result));
+        });
+    }
+
+    /**
+     * Gets the UUID of a player without looking anything up. Online players are always known, as names are
+     * recorded on login. Safe to call from any thread.
+     *
+     * @param name the player name
+     * @return the UUID, or null if the name isn't known yet
+     */
+    public UUID getCached(String name) {
+        return byName.get(name.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Records the current name of a player, forgetting any name they had before, and forgetting the name for
+     * whoever had it before them.
+     *
+     * @param uuid the player
+     * @param name their name
+     */
+    public void remember(UUID uuid, String name) {
+        String old = byUUID.put(uuid, name);
+        if (old != null && !old.equalsIgnoreCase(name)) {
+            byName.remove(old.toLowerCase(Locale.ROOT), uuid);
+        }
+        UUID previous = byName.put(name.toLowerCase(Locale.ROOT), uuid);
+        if (previous != null && !previous.equals(uuid)) {
+            // The name changed hands, the old owner's is no longer known.
+            byUUID.computeIfPresent(previous, (owner, theirs) -> theirs.equalsIgnoreCase(name) ? null : theirs);
+            PlayerVaults.debug("Player name " + name + " moved from " + previous + " to " + uuid);
+        }
+    }
+
+    private void read() {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                UUID uuid = new UUID(in.readLong(), in.readLong());
+                remember(uuid, in.readUTF());
+            }
+        } catch (NoSuchFileException e) {
+            // Nothing seen yet.
+        } catch (IOException e) {
+            byName.clear();
+            byUUID.clear();
+            plugin.getLogger().log(Level.WARNING, "Failed to read known player names", e);
+        }
+    }
+
+    /**
+     * Saves every known name. Called on disable.
+     */
+    public void save() {
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp.toPath())))) {
+                Map<UUID, String> names = new HashMap<>(byUUID);
+                out.writeInt(names.size());
+                for (Map.Entry<UUID, String> entry : names.entrySet()) {
+                    out.writeLong(entry.getKey().getMostSignificantBits());
+                    out.writeLong(entry.getKey().getLeastSignificantBits());
+                    out.writeUTF(entry.getValue());
+                }
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING, "Failed to save known player names", e);
+        }
+    }
+}
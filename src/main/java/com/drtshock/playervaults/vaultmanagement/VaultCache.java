@@ -0,0 +1,265 @@
+/*
+ * PlayerVaultsX
+ * Copyright (C) 2013 Trent Hensler
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.drtshock.playervaults.vaultmanagement;
+
+import com.drtshock.playervaults.PlayerVaults;
+import com.drtshock.playervaults.config.file.Config;
+import com.drtshock.playervaults.storage.VaultKey;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of vaults, bounded by the size of what it keeps. Implementations decide what
+ * form a cached vault takes, see {@link #create(PlayerVaults)}.
+ * <p>
+ * Writes of a vault replace its entry. Entries filled from reads carry the stamp taken before the read, and
+ * are dropped if any write happened since, so a slow read can never put back contents older than a write.
+ *
+ * @param <V> the cached form of a vault
+ */
+public abstract class VaultCache<V> {
+
+    private final long maxWeight;
+    private final Object lock = new Object();
+    // Guarded by lock, in access order.
+    private final LinkedHashMap<VaultKey, V> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight;
+    private long stamp;
+    private volatile long hits;
+    private volatile long misses;
+    private volatile long evictions;
+
+    VaultCache(long maxWeight) {
+        this.maxWeight = Math.max(0, maxWeight);
+    }
+
+    /**
+     * Creates the cache configured for this server.
+     *
+     * @param plugin the plugin
+     * @return the cache
+     */
+    static VaultCache<?> create(PlayerVaults plugin) {
+        Config.Storage conf = plugin.getConf().getStorage();
+        long maxWeight = conf.getCacheSize() * 1024L * 1024L;
+        return conf.isOffHeapCache() ? new DirectVaultCache(maxWeight) : new HeapVaultCache(maxWeight);
+    }
+
+    /**
+     * Turns a vault into its cached form.
+     *
+     * @param contents the contents
+     * @param data the contents as stored
+     * @return the cached form, or null if it should not be cached
+     * @throws IOException if the stored data is not a vault
+     */
+    abstract V store(VaultContents contents, byte[] data) throws IOException;
+
+    /**
+     * Turns a cached vault back into contents.
+     *
+     * @param value the cached form
+     * @return the contents
+     * @throws IOException if the cached data is not a vault
+     */
+    abstract VaultContents restore(V value) throws IOException;
+
+    /**
+     * Gets whether items deserialized from cached contents stay deserialized while cached.
+     *
+     * @return true if the cache keeps items
+     */
+    abstract boolean retainsItems();
+
+    /**
+     * Gets how much a cached vault counts against the size limit.
+     *
+     * @param value the cached form
+     * @return the weight, in bytes
+     */
+    abstract int weigh(V value);
+
+    /**
+     * Gets cached contents of a vault.
+     *
+     * @param key the vault
+     * @return the contents, or null if not cached
+     */
+    VaultContents get(VaultKey key) {
+        V value;
+        synchronized (lock) {
+            value = entries.get(key);
+            if (value == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+        }
+        try {
+            return restore(value);
+        } catch (IOException e) {
+            PlayerVaults.debug("Dropping unreadable cached vault " + key + ": " + e.getMessage());
+            invalidate(key);
+            return null;
+        }
+    }
+
+    /**
+     * Gets the current stamp, to be taken before reading a vault from storage.
+     *
+     * @return the stamp
+     */
+    long getStamp() {
+        synchronized (lock) {
+            return stamp;
+        }
+    }
+
+    /**
+     * Caches contents just written to storage.
+     *
+     * @param key the vault
+     * @param contents the contents
+     * @param data the contents as stored
+     */
+    void put(VaultKey key, VaultContents contents, byte[] data) {
+        V value = toValue(key, contents, data);
+        synchronized (lock) {
+            stamp++;
+            if (value == null) {
+                remove(key);
+            } else {
+                insert(key, value);
+            }
+        }
+    }
+
+    /**
+     * Caches contents read from storage, unless a vault was written since the stamp was taken.
+     *
+     * @param key the vault
+     * @param contents the contents
+     * @param data the contents as stored
+     * @param stamp the stamp taken before reading
+     */
+    void putIfUnchanged(VaultKey key, VaultContents contents, byte[] data, long stamp) {
+        V value = toValue(key, contents, data);
+        if (value == null) {
+            return;
+        }
+        synchronized (lock) {
+            if (this.stamp == stamp && !entries.containsKey(key)) {
+                insert(key, value);
+            }
+        }
+    }
+
+    private V toValue(VaultKey key, VaultContents contents, byte[] data) {
+        try {
+            V value = store(contents, data);
+            return value == null || weigh(value) > maxWeight ? null : value;
+        } catch (IOException e) {
+            PlayerVaults.debug("Not caching unreadable vault " + key + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void insert(VaultKey key, V value) {
+        remove(key);
+        entries.put(key, value);
+        this.weight += weigh(value);
+
+        Iterator<Map.Entry<VaultKey, V>> iterator = entries.entrySet().iterator();
+        while (this.weight > maxWeight && iterator.hasNext()) {
+            Map.Entry<VaultKey, V> eldest = iterator.next();
+            this.weight -= weigh(eldest.getValue());
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    private void remove(VaultKey key) {
+        V old = entries.remove(key);
+        if (old != null) {
+            this.weight -= weigh(old);
+        }
+    }
+
+    /**
+     * Drops a vault from the cache.
+     *
+     * @param key the vault
+     */
+    void invalidate(VaultKey key) {
+        synchronized (lock) {
+            stamp++;
+            remove(key);
+        }
+    }
+
+    /**
+     * Drops every vault of a holder from the cache.
+     *
+     * @param holder the holder
+     */
+    void invalidateAll(String holder) {
+        synchronized (lock) {
+            stamp++;
+            Iterator<Map.Entry<VaultKey, V>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<VaultKey, V> entry = iterator.next();
+                if (entry.getKey().getHolder().equals(holder)) {
+                    weight -= weigh(entry.getValue());
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    public int getSize() {
+        synchronized (lock) {
+            return entries.size();
+        }
+    }
+
+    public long getWeight() {
+        synchronized (lock) {
+            return weight;
+        }
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * PlayerVaultsX
+ * Copyright (C) 2013 Trent Hensler
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.drtshock.playervaults.vaultmanagement;
+
+import com.drtshock.playervaults.PlayerVaults;
+import com.drtshock.playervaults.config.file.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Compression settings for vault blobs, and the preset dictionaries they may be compressed with.
+ * <p>
+ * Dictionaries are kept in the dictionaries folder as {@code <id>.dict}, where the id is the CRC32 of the
+ * dictionary. Blobs name the dictionary they were compressed with, so old dictionaries are never deleted.
+ */
+public class VaultCompression {
+
+    static final byte NONE = 0;
+    static final byte DEFLATE = 1;
+    static final byte DEFLATE_DICTIONARY = 2;
+
+    // Deflate only looks back 32KB, anything more would never be used.
+    private static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+    private static final String ACTIVE = "active";
+    private static VaultCompression instance;
+    private final Logger logger;
+    private final Supplier<Config.Storage.Compression> config;
+    private final File folder;
+    private final Map<Integer, byte[]> dictionaries = new ConcurrentHashMap<>();
+    private volatile Integer activeDictionary;
+    private String codecName;
+    private byte codec;
+
+    public VaultCompression(PlayerVaults plugin) {
+        this(new File(plugin.getDataFolder(), "dictionaries"), plugin.getLogger(), () -> plugin.getConf().getStorage().getCompression());
+    }
+
+    VaultCompression(File folder, Logger logger, Supplier<Config.Storage.Compression> config) {
+        this.logger = logger;
+        this.config = config;
+        this.folder = folder;
+        loadDictionaries();
+        instance = this;
+    }
+
+    /**
+     * Get the instance of this class.
+     *
+     * @return - instance of this class.
+     */
+    public static VaultCompression getInstance() {
+        return instance;
+    }
+
+    private void loadDictionaries() {
+        File[] files = folder.listFiles((dir, name) -> name.endsWith(".dict"));
+        for (File file : files != null ? files : new File[0]) {
+            try {
+                byte[] dictionary = Files.readAllBytes(file.toPath());
+                int id = checksum(dictionary);
+                if (!file.getName().equals(toFileName(id))) {
+                    logger.warning("Ignoring damaged compression dictionary " + file.getName());
+                    continue;
+                }
+                dictionaries.put(id, dictionary);
+            } catch (IOException e) {
+                logger.warning("Failed to read compression dictionary " + file.getName() + ": " + e.getMessage());
+            }
+        }
+
+        File active = new File(folder, ACTIVE);
+        if (active.exists()) {
+            try {
+                int id = Integer.parseUnsignedInt(new String(Files.readAllBytes(active.toPath()), StandardCharsets.UTF_8).trim(), 16);
+                if (dictionaries.containsKey(id)) {
+                    activeDictionary = id;
+                } else {
+                    logger.severe("Active compression dictionary " + Integer.toHexString(id) + " is missing, vaults compressed with it can't be opened until it is restored");
+                }
+            } catch (IOException | NumberFormatException e) {
+                logger.warning("Failed to read active compression dictionary: " + e.getMessage());
+            }
+        }
+        PlayerVaults.debug("Loaded " + dictionaries.size() + " compression dictionaries");
+    }
+
+    /**
+     * Gets the codec new vaults are written with.
+     *
+     * @return the codec
+     */
+    byte getCodec() {
+        byte codec = getConfiguredCodec();
+        if (codec == DEFLATE_DICTIONARY && activeDictionary == null) {
+            return DEFLATE;
+        }
+        return codec;
+    }
+
+    /**
+     * Checks if the configured codec wants a trained dictionary.
+     *
+     * @return true if a dictionary is wanted
+     */
+    public boolean isDictionaryWanted() {
+        return getConfiguredCodec() == DEFLATE_DICTIONARY;
+    }
+
+    private synchronized byte getConfiguredCodec() {
+        String name = getConfig().getCodec();
+        if (name != null && name.equals(codecName)) {
+            return codec;
+        }
+        switch (name == null ? "" : name.toLowerCase(Locale.ROOT)) {
+            case "none":
+                codec = NONE;
+                break;
+            case "deflate":
+                codec = DEFLATE;
+                break;
+            case "deflate-dictionary":
+                codec = DEFLATE_DICTIONARY;
+                break;
+            default:
+                logger.warning("Unknown compression codec '" + name + "', using deflate.");
+                codec = DEFLATE;
+        }
+        codecName = name;
+        return codec;
+    }
+
+    int getLevel() {
+        return Math.max(1, Math.min(9, getConfig().getLevel()));
+    }
+
+    private Config.Storage.Compression getConfig() {
+        return config.get();
+    }
+
+    /**
+     * Gets the dictionary new vaults are compressed with.
+     *
+     * @return the dictionary id, or null if none has been trained
+     */
+    Integer getActiveDictionary() {
+        return activeDictionary;
+    }
+
+    /**
+     * Gets a dictionary by id.
+     *
+     * @param id the dictionary id
+     * @return the dictionary, or null if it is unknown
+     */
+    byte[] getDictionary(int id) {
+        return dictionaries.get(id);
+    }
+
+    /**
+     * Trains a new dictionary from a sample of stored vaults and makes it the active one. Items stored more than
+     * once across the sample make up the dictionary, ranked by the bytes they save beyond their first copy, the
+     * most valuable last so they are the cheapest to refer to.
+     *
+     * @param vaults raw blobs of the sampled vaults
+     * @return the size of the new dictionary, or 0 if the sample held no repeated items
+     * @throws IOException if the dictionary could not be saved
+     */
+    public int train(Collection<byte[]> vaults) throws IOException {
+        Map<ByteBuffer, Integer> counts = new HashMap<>();
+        for (byte[] vault : vaults) {
+            try {
+                for (byte[] item : CardboardBoxSerialization.readItems(vault)) {
+                    counts.merge(ByteBuffer.wrap(item), 1, Integer::sum);
+                }
+            } catch (IOException e) {
+                PlayerVaults.debug("Skipping unreadable vault while training: " + e.getMessage());
+            }
+        }
+
+        List<Map.Entry<ByteBuffer, Integer>> items = new ArrayList<>(counts.size());
+        for (Map.Entry<ByteBuffer, Integer> item : counts.entrySet()) {
+            // An item seen once can't help compress anything else.
+            if (item.getValue() > 1) {
+                items.add(item);
+            }
+        }
+        items.sort((a, b) -> Long.compare((long) (b.getValue() - 1) * b.getKey().remaining(), (long) (a.getValue() - 1) * a.getKey().remaining()));
+        List<ByteBuffer> chosen = new ArrayList<>();
+        int size = 0;
+        for (Map.Entry<ByteBuffer, Integer> item : items) {
+            int length = item.getKey().remaining();
+            if (size + length <= MAX_DICTIONARY_SIZE) {
+                chosen.add(item.getKey());
+                size += length;
+            }
+        }
+        if (size == 0) {
+            return 0;
+        }
+
+        ByteBuffer dictionary = ByteBuffer.allocate(size);
+        for (int i = chosen.size() - 1; i >= 0; i--) {
+            dictionary.put(chosen.get(i).duplicate());
+        }
+        byte[] bytes = dictionary.array();
+        int id = checksum(bytes);
+
+        folder.mkdirs();
+        // The dictionary must be on disk before anything can be compressed with it, or those vaults are lost with it.
+        write(new File(folder, toFileName(id)), bytes);
+        write(new File(folder, ACTIVE), Integer.toHexString(id).getBytes(StandardCharsets.UTF_8));
+        dictionaries.put(id, bytes);
+        activeDictionary = id;
+        logger.info("Trained compression dictionary " + Integer.toHexString(id) + " from " + counts.size() + " distinct items");
+        return size;
+    }
+
+    /**
+     * Replaces a file with the given bytes all at once, synced to disk before this returns.
+     */
+    private static void write(File file, byte[] bytes) throws IOException {
+        Path temp = new File(file.getPath() + ".tmp").toPath();
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+
+        try (FileChannel folder = FileChannel.open(file.getParentFile().toPath(), StandardOpenOption.READ)) {
+            folder.force(true);
+        } catch (IOException e) {
+            // Not every platform can sync a folder.
+        }
+    }
+
+    private static int checksum(byte[] dictionary) {
+        CRC32 crc = new CRC32();
+        crc.update(dictionary);
+        return (int) crc.getValue();
+    }
+
+    private static String toFileName(int id) {
+        return Integer.toHexString(id) + ".dict";
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * PlayerVaultsX
+ * Copyright (C) 2013 Trent Hensler
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.drtshock.playervaults.vaultmanagement;
+
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+import org.kitteh.cardboardbox.CardboardBox;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The contents of a vault, decoded one slot at a time. Only where each slot's item lies in the stored data
+ * is known up front, an item is deserialized the first time its slot is read.
+ */
+public final class VaultContents {
+
+    /**
+     * A vault without any items.
+     */
+    public static final VaultContents EMPTY = new VaultContents(0, null, null, null, new ItemStack[0], false);
+
+    private final int size;
+    // Heap or direct, only ever read through duplicates.
+    private final ByteBuffer data;
+    // Per slot, where the serialized item starts in data, or -1 if the slot is empty or already decoded.
+    private final int[] offsets;
+    private final int[] lengths;
+    private final ItemStack[] items;
+    // The old format stored empty slots as air, which only shows after decoding.
+    private final boolean dropAir;
+
+    VaultContents(int size, ByteBuffer data, int[] offsets, int[] lengths, ItemStack[] items, boolean dropAir) {
+        this.size = size;
+        this.data = data;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.items = items;
+        this.dropAir = dropAir;
+    }
+
+    VaultContents(ByteBuffer data, int[] offsets, int[] lengths, boolean dropAir) {
+        this(offsets.length, data, offsets, lengths, new ItemStack[offsets.length], dropAir);
+    }
+
+    /**
+     * Wraps already deserialized contents.
+     *
+     * @param items the items, not copied
+     * @return the contents
+     */
+    public static VaultContents of(ItemStack[] items) {
+        return new VaultContents(items.length, null, null, null, items, false);
+    }
+
+    /**
+     * Gets the number of slots the vault was saved with.
+     *
+     * @return the slot count
+     */
+    public int getSize() {
+        return this.size;
+    }
+
+    /**
+     * Checks if a slot may hold an item, without deserializing it.
+     *
+     * @param slot the slot
+     * @return true if the slot holds, or may hold, an item
+     */
+    public synchronized boolean isOccupied(int slot) {
+        return this.items[slot] != null || (this.offsets != null && this.offsets[slot] >= 0);
+    }
+
+    /**
+     * Checks if no slot holds an item, without deserializing any.
+     *
+     * @return true if the vault is empty
+     */
+    public boolean isEmpty() {
+        for (int slot = 0; slot < this.size; slot++) {
+            if (isOccupied(slot)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the item in a slot, deserializing it if this is the first time it is read.
+     *
+     * @param slot the slot
+     * @return the item, or null if the slot is empty
+     */
+    public synchronized ItemStack getItem(int slot) {
+        ItemStack item = this.items[slot];
+        int offset = this.offsets == null ? -1 : this.offsets[slot];
+        if (item == null && offset >= 0) {
+            byte[] bytes = new byte[this.lengths[slot]];
+            ByteBuffer source = this.data.duplicate();
+            source.position(offset);
+            source.get(bytes);
+            item = CardboardBox.deserializeItem(bytes);
+            if (item != null && this.dropAir && item.getType() == Material.AIR) {
+                item = null;
+            }
+            this.items[slot] = item;
+            this.offsets[slot] = -1;
+        }
+        return item;
+    }
+
+    /**
+     * Deserializes every slot.
+     *
+     * @return a new array of all items, empty slots are null
+     */
+    public ItemStack[] toArray() {
+        ItemStack[] array = new ItemStack[this.size];
+        for (int slot = 0; slot < this.size; slot++) {
+            array[slot] = getItem(slot);
+        }
+        return array;
+    }
+}
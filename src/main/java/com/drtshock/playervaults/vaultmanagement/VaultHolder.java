@@ -22,20 +22,33 @@ import org.bukkit.inventory.Inventory;
 import org.bukkit.inventory.InventoryHolder;
 
 /**
- * Represents a VaultHolder to assist in detection of Player Vaults from other plugins.
+ * Represents a VaultHolder to assist in detection of Player Vaults from other plugins. Every vault inventory
+ * is created with one, so a view is known to be a vault just by looking at its holder.
  */
 public class VaultHolder implements InventoryHolder {
 
     private Inventory inventory;
-    private final int vaultNumber;
+    private final VaultViewInfo info;
 
     /**
      * Creates a new vault holder
      *
      * @param vaultNumber the vault number this holder is using
+     * @deprecated the owner is unknown, use {@link #VaultHolder(String, int)}
      */
+    @Deprecated
     public VaultHolder(int vaultNumber) {
-        this.vaultNumber = vaultNumber;
+        this(null, vaultNumber);
+    }
+
+    /**
+     * Creates a new vault holder
+     *
+     * @param owner the holder of the vault, as used for storage
+     * @param vaultNumber the vault number this holder is using
+     */
+    public VaultHolder(String owner, int vaultNumber) {
+        this.info = new VaultViewInfo(owner == null ? "" : owner, vaultNumber);
     }
 
     /**
@@ -44,7 +57,25 @@ public class VaultHolder implements InventoryHolder {
      * @return the vault number
      */
     public int getVaultNumber() {
-        return vaultNumber;
+        return info.getNumber();
+    }
+
+    /**
+     * Gets the holder of the vault, as used for storage.
+     *
+     * @return the owner, empty if unknown
+     */
+    public String getOwner() {
+        return info.getVaultName();
+    }
+
+    /**
+     * Gets the vault, as tracked in the {@link VaultSessions}.
+     *
+     * @return the vault
+     */
+    public VaultViewInfo getInfo() {
+        return info;
     }
 
     @Override
@@ -19,38 +19,72 @@
 package com.drtshock.playervaults.vaultmanagement;
 
 import com.drtshock.playervaults.PlayerVaults;
+import com.drtshock.playervaults.config.file.Config;
+import com.drtshock.playervaults.storage.FlatFileStorage;
+import com.drtshock.playervaults.storage.IndexedVaultStorage;
+import com.drtshock.playervaults.storage.SqliteStorage;
+import com.drtshock.playervaults.storage.VaultKey;
+import com.drtshock.playervaults.storage.VaultStorage;
 import org.bukkit.Bukkit;
 import org.bukkit.OfflinePlayer;
 import org.bukkit.command.CommandSender;
-import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.entity.Player;
 import org.bukkit.inventory.Inventory;
-import org.bukkit.inventory.InventoryHolder;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.scheduler.BukkitRunnable;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.logging.Level;
 
 public class VaultManager {
 
-    private static final String VAULTKEY = "vault%d";
     private static VaultManager instance;
-    private final File directory = PlayerVaults.getInstance().getVaultData();
-    private final Map<String, YamlConfiguration> cachedVaultFiles = new ConcurrentHashMap<>();
     private final PlayerVaults plugin;
+    private final IndexedVaultStorage storage;
+    private final VaultCache<?> cache;
+    private final VaultSaveQueue saveQueue;
+    // Reads from storage in progress, so a vault is never read twice at once.
+    private final Map<VaultKey, CompletableFuture<VaultContents>> loading = new ConcurrentHashMap<>();
 
     public VaultManager(PlayerVaults plugin) {
         this.plugin = plugin;
+        new VaultCompression(plugin);
+        this.storage = new IndexedVaultStorage(plugin, createStorage(plugin));
+        this.cache = VaultCache.create(plugin);
+        this.saveQueue = new VaultSaveQueue(plugin.getLogger(), this.storage, this.cache, this.loading, plugin.getConf().getStorage().getRecompressThrottle());
+        this.saveQueue.start();
+        if (!this.storage.isComplete()) {
+            buildIndex();
+        }
         instance = this;
     }
 
+    private void buildIndex() {
+        new BukkitRunnable() {
+            @Override
+            public void run() {
+                try {
+                    storage.build();
+                } catch (IOException | RuntimeException e) {
+                    plugin.getLogger().log(Level.WARNING, "Failed to index vault holders, they'll be listed from storage", e);
+                }
+            }
+        }.runTaskAsynchronously(plugin);
+    }
+
     /**
      * Get the instance of this class.
      *
@@ -60,19 +94,105 @@ public class VaultManager {
         return instance;
     }
 
+    private static VaultStorage createStorage(PlayerVaults plugin) {
+        String type = plugin.getConf().getStorage().getStorageType();
+        switch (type == null ? "" : type.toLowerCase(Locale.ROOT)) {
+            case "flatfile":
+                return openFlatFile(plugin);
+            case "sqlite":
+                Config.Storage.Sqlite conf = plugin.getConf().getStorage().getSqlite();
+                SqliteStorage sqlite = new SqliteStorage(plugin, new File(plugin.getDataFolder(), conf.getFile()), conf.getBatchSize(), conf.getFlushInterval());
+                try {
+                    sqlite.open();
+                } catch (IOException e) {
+                    plugin.getLogger().log(Level.SEVERE, "Failed to open vault database, falling back to flatfile!", e);
+                    return openFlatFile(plugin);
+                }
+                if (!sqlite.isImported()) {
+                    if (plugin.getVaultData().exists()) {
+                        copyVaults(plugin, openFlatFile(plugin), sqlite);
+                    }
+                    try {
+                        sqlite.markImported();
+                    } catch (IOException e) {
+                        plugin.getLogger().log(Level.SEVERE, "Failed to finish importing vaults, they'll be imported again next start", e);
+                    }
+                }
+                return sqlite;
+            default:
+                plugin.getLogger().warning("Unknown storage type '" + type + "', falling back to flatfile.");
+                return openFlatFile(plugin);
+        }
+    }
+
+    private static FlatFileStorage openFlatFile(PlayerVaults plugin) {
+        FlatFileStorage storage = new FlatFileStorage(plugin);
+        storage.recover();
+        return storage;
+    }
+
+    private static void copyVaults(PlayerVaults plugin, VaultStorage from, VaultStorage to) {
+        plugin.getLogger().info("Importing vaults from " + from.getName() + " to " + to.getName() + ". This might take a while.");
+        int holders = 0;
+        int vaults = 0;
+        int failed = 0;
+        try {
+            for (String holder : from.getHolders()) {
+                for (int number : from.list(holder)) {
+                    try {
+                        byte[] data = from.load(holder, number);
+                        if (data != null) {
+                            to.save(holder, number, data);
+                            vaults++;
+                        }
+                    } catch (IOException e) {
+                        plugin.getLogger().severe("Failed to import vault " + number + " for " + holder + ": " + e.getMessage());
+                        failed++;
+                    }
+                }
+                holders++;
+            }
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Failed to list vaults to import", e);
+        }
+        plugin.getLogger().info(String.format("Imported %d vaults for %d holders. %d failed to import", vaults, holders, failed));
+    }
+
+    /**
+     * Gets the storage backing all vaults.
+     *
+     * @return the vault storage
+     */
+    public IndexedVaultStorage getStorage() {
+        return this.storage;
+    }
+
     /**
-     * Saves the inventory to the specified player and vault number.
+     * Gets the cache of recently used vaults.
+     *
+     * @return the vault cache
+     */
+    public VaultCache<?> getCache() {
+        return this.cache;
+    }
+
+    /**
+     * Saves the inventory to the specified player and vault number. Only a copy of the contents is taken
+     * here, the vault is serialized and written in the background.
      *
      * @param inventory The inventory to be saved.
      * @param target The player of whose file to save to.
      * @param number The vault number.
      */
     public void saveVault(Inventory inventory, String target, int number) {
-        YamlConfiguration yaml = getPlayerVaultFile(target, true);
-        int size = VaultOperations.getMaxVaultSize(target);
-        String serialized = CardboardBoxSerialization.toStorage(inventory, target);
-        yaml.set(String.format(VAULTKEY, number), serialized);
-        saveFileSync(target, yaml);
+        ItemStack[] contents = inventory.getContents();
+        ItemStack[] snapshot = new ItemStack[contents.length];
+        for (int i = 0; i < contents.length; i++) {
+            // Bukkit hands out live mirrors of the inventory's items, so they must be copied right now.
+            snapshot[i] = contents[i] == null ? null : contents[i].clone();
+        }
+        saveQueue.save(new VaultKey(target, number), snapshot);
+        PlayerVaults.debug("Queued vault save for " + target);
     }
 
     /**
@@ -82,29 +202,58 @@ public class VaultManager {
      * @param number The vault number.
      */
     public Inventory loadOwnVault(Player player, int number, int size) {
+        PlayerVaults.debug("Loading self vault for " + player.getName() + " (" + player.getUniqueId() + ')');
+
+        String holder = player.getUniqueId().toString();
+        VaultContents contents = null;
+        if (!isOpen(holder, number)) {
+            try {
+                contents = loadContents(holder, number);
+            } catch (IOException e) {
+                logLoadFailure(holder, number, e);
+                return null;
+            }
+        }
+        return createOwnVault(player, number, size, contents);
+    }
+
+    /**
+     * Load the player's vault on a worker thread. The callback runs on the main thread, on the tick after the
+     * vault was read, and gets null if the vault couldn't be read.
+     *
+     * @param player The holder of the vault.
+     * @param number The vault number.
+     * @param size The size of the vault.
+     * @param callback What to do with the vault.
+     */
+    public void loadOwnVaultAsync(Player player, int number, int size, Consumer<Inventory> callback) {
+        PlayerVaults.debug("Loading self vault for " + player.getName() + " (" + player.getUniqueId() + ") in the background");
+
+        String holder = player.getUniqueId().toString();
+        if (isOpen(holder, number)) {
+            callback.accept(createOwnVault(player, number, size, null));
+            return;
+        }
+        loadAsync(holder, number, contents -> createOwnVault(player, number, size, contents), callback);
+    }
+
+    private Inventory createOwnVault(Player player, int number, int size, VaultContents contents) {
         if (size % 9 != 0) {
             size = PlayerVaults.getInstance().getDefaultVaultSize();
         }
 
-        PlayerVaults.debug("Loading self vault for " + player.getName() + " (" + player.getUniqueId() + ')');
-
         String title = PlayerVaults.getInstance().getVaultTitle(String.valueOf(number));
-        VaultViewInfo info = new VaultViewInfo(player.getUniqueId().toString(), number);
-        if (PlayerVaults.getInstance().getOpenInventories().containsKey(info.toString())) {
+        Inventory open = PlayerVaults.getInstance().getSessions().getInventory(new VaultViewInfo(player.getUniqueId().toString(), number));
+        if (open != null) {
             PlayerVaults.debug("Already open");
-            return PlayerVaults.getInstance().getOpenInventories().get(info.toString());
+            return open;
         }
 
-        YamlConfiguration playerFile = getPlayerVaultFile(player.getUniqueId().toString(), true);
-        VaultHolder vaultHolder = new VaultHolder(number);
-        if (playerFile.getString(String.format(VAULTKEY, number)) == null) {
+        VaultHolder vaultHolder = new VaultHolder(player.getUniqueId().toString(), number);
+        if (contents == null) {
             PlayerVaults.debug("No vault matching number");
-            Inventory inv = Bukkit.createInventory(vaultHolder, size, title);
-            vaultHolder.setInventory(inv);
-            return inv;
-        } else {
-            return getInventory(vaultHolder, player.getUniqueId().toString(), playerFile, size, number, title);
         }
+        return getInventory(vaultHolder, contents, size, title);
     }
 
     /**
@@ -114,75 +263,229 @@ public class VaultManager {
      * @param number The vault number.
      */
     public Inventory loadOtherVault(String name, int number, int size) {
-        if (size % 9 != 0) {
-            size = PlayerVaults.getInstance().getDefaultVaultSize();
+        PlayerVaults.debug("Loading other vault for " + name);
+
+        String holder = getHolder(name);
+        VaultContents contents = null;
+        if (!isOpen(name, number)) {
+            try {
+                contents = loadContents(holder, number);
+            } catch (IOException e) {
+                logLoadFailure(holder, number, e);
+                return null;
+            }
         }
+        return createOtherVault(name, holder, number, size, contents);
+    }
 
-        PlayerVaults.debug("Loading other vault for " + name);
+    /**
+     * Load another player's vault on a worker thread. The callback runs on the main thread, on the tick after
+     * the vault was read, and gets null if the vault couldn't be read.
+     *
+     * @param name The holder of the vault.
+     * @param number The vault number.
+     * @param size The size of the vault.
+     * @param callback What to do with the vault.
+     */
+    public void loadOtherVaultAsync(String name, int number, int size, Consumer<Inventory> callback) {
+        PlayerVaults.debug("Loading other vault for " + name + " in the background");
 
-        String holder = name;
+        String holder = getHolder(name);
+        if (isOpen(name, number)) {
+            callback.accept(createOtherVault(name, holder, number, size, null));
+            return;
+        }
+        loadAsync(holder, number, contents -> createOtherVault(name, holder, number, size, contents), callback);
+    }
 
-        try {
-            UUID uuid = UUID.fromString(name);
-            OfflinePlayer offlinePlayer = Bukkit.getOfflinePlayer(uuid);
-            holder = offlinePlayer.getUniqueId().toString();
-        } catch (Exception e) {
-            // Not a player
+    private Inventory createOtherVault(String name, String holder, int number, int size, VaultContents contents) {
+        if (size % 9 != 0) {
+            size = PlayerVaults.getInstance().getDefaultVaultSize();
         }
 
         String title = PlayerVaults.getInstance().getVaultTitle(String.valueOf(number));
         VaultViewInfo info = new VaultViewInfo(name, number);
-        Inventory inv;
-        VaultHolder vaultHolder = new VaultHolder(number);
-        if (PlayerVaults.getInstance().getOpenInventories().containsKey(info.toString())) {
+        VaultHolder vaultHolder = new VaultHolder(holder, number);
+        Inventory inv = PlayerVaults.getInstance().getSessions().getInventory(info);
+        if (inv != null) {
             PlayerVaults.debug("Already open");
-            inv = PlayerVaults.getInstance().getOpenInventories().get(info.toString());
         } else {
-            YamlConfiguration playerFile = getPlayerVaultFile(holder, true);
-            Inventory i = getInventory(vaultHolder, holder, playerFile, size, number, title);
+            Inventory i = getInventory(vaultHolder, contents, size, title);
             if (i == null) {
                 return null;
             } else {
                 inv = i;
             }
-            PlayerVaults.getInstance().getOpenInventories().put(info.toString(), inv);
+            PlayerVaults.getInstance().getSessions().putInventory(info, inv);
         }
         return inv;
     }
 
+    private static String getHolder(String name) {
+        try {
+            UUID uuid = UUID.fromString(name);
+            OfflinePlayer offlinePlayer = Bukkit.getOfflinePlayer(uuid);
+            return offlinePlayer.getUniqueId().toString();
+        } catch (Exception e) {
+            // Not a player
+            return name;
+        }
+    }
+
+    private boolean isOpen(String name, int number) {
+        return PlayerVaults.getInstance().getSessions().getInventory(new VaultViewInfo(name, number)) != null;
+    }
+
+    /**
+     * Reads a vault and deserializes its items on a worker thread, then creates the inventory and hands it to
+     * the callback on the main thread.
+     *
+     * @param holder The holder of the vault.
+     * @param number The vault number.
+     * @param create Creates the inventory from the contents, on the main thread.
+     * @param callback Gets the inventory, or null if the vault couldn't be read.
+     */
+    private void loadAsync(String holder, int number, Function<VaultContents, Inventory> create, Consumer<Inventory> callback) {
+        new BukkitRunnable() {
+            @Override
+            public void run() {
+                long time = System.currentTimeMillis();
+                VaultContents contents;
+                try {
+                    contents = loadContents(holder, number);
+                    if (contents != null) {
+                        // Deserialize here, so the main thread only has to place the items.
+                        contents.toArray();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // Always hand something back, so the opener isn't left waiting forever.
+                    logLoadFailure(holder, number, e);
+                    finish(callback, failed -> null, null);
+                    return;
+                }
+                PlayerVaults.debug("Read vault " + number + " of " + holder + " in the background", time);
+                finish(callback, create, contents);
+            }
+        }.runTaskAsynchronously(plugin);
+    }
+
+    private void finish(Consumer<Inventory> callback, Function<VaultContents, Inventory> create, VaultContents contents) {
+        new BukkitRunnable() {
+            @Override
+            public void run() {
+                Inventory inventory;
+                try {
+                    inventory = create.apply(contents);
+                } catch (RuntimeException e) {
+                    PlayerVaults.getInstance().getLogger().log(Level.SEVERE, "Failed to create a loaded vault", e);
+                    inventory = null;
+                }
+                callback.accept(inventory);
+            }
+        }.runTask(plugin);
+    }
+
+    /**
+     * Gets the contents of a vault, looking at queued saves, then the cache, then storage. Items are only
+     * deserialized once their slots are read. If the vault is already being read, that read is waited for.
+     *
+     * @param holder The holder of the vault.
+     * @param number The vault number.
+     * @return the contents, or null if the vault doesn't exist or couldn't be read.
+     * @throws IOException if the storage failed.
+     */
+    private VaultContents loadContents(String holder, int number) throws IOException {
+        VaultKey key = new VaultKey(holder, number);
+        ItemStack[] queued = saveQueue.getQueued(key);
+        if (queued != null) {
+            return queued == VaultSaveQueue.DELETED ? null : VaultContents.of(queued);
+        }
+        VaultContents cached = cache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        CompletableFuture<VaultContents> load = new CompletableFuture<>();
+        CompletableFuture<VaultContents> running = loading.putIfAbsent(key, load);
+        if (running != null) {
+            PlayerVaults.debug("Waiting for running load of vault " + key);
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            }
+        }
+
+        try {
+            long stamp = cache.getStamp();
+            byte[] data = storage.load(holder, number);
+            // Data that can't be read fails the load, so it's never shown, and then saved over, as an empty vault.
+            VaultContents contents = data == null ? null : data.length == 0 ? VaultContents.EMPTY : CardboardBoxSerialization.index(data);
+            if (contents != null) {
+                cache.putIfUnchanged(key, contents, data, stamp);
+            }
+            load.complete(contents);
+            return contents;
+        } catch (IOException | RuntimeException e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, load);
+        }
+    }
+
     /**
-     * Get an inventory from file. Returns null if the inventory doesn't exist. SHOULD ONLY BE USED INTERNALLY
+     * Get an inventory from vault contents. SHOULD ONLY BE USED INTERNALLY
      *
-     * @param playerFile the YamlConfiguration file.
+     * @param owner the holder the inventory is created with.
+     * @param deserialized the vault contents, may be null.
      * @param size the size of the vault.
-     * @param number the vault number.
-     * @return inventory if exists, otherwise null.
+     * @return the inventory.
      */
-    private Inventory getInventory(InventoryHolder owner, String ownerName, YamlConfiguration playerFile, int size, int number, String title) {
+    private Inventory getInventory(VaultHolder owner, VaultContents deserialized, int size, String title) {
         Inventory inventory = Bukkit.createInventory(owner, size, title);
+        owner.setInventory(inventory);
 
-        String data = playerFile.getString(String.format(VAULTKEY, number));
-        ItemStack[] deserialized = CardboardBoxSerialization.fromStorage(data, ownerName);
         if (deserialized == null) {
-            PlayerVaults.debug("Loaded vault for " + ownerName + " as null");
+            PlayerVaults.debug("Loaded vault for " + owner.getOwner() + " as null");
             return inventory;
         }
 
-        // Check if deserialized has more used slots than the limit here.
-        // Happens on change of permission or if people used the broken version.
-        // In this case, players will lose items.
-        if (deserialized.length > size) {
-            for (ItemStack stack : deserialized) {
-                if (stack != null) {
-                    inventory.addItem(stack);
+        fill(inventory, deserialized);
+        PlayerVaults.debug("Loaded vault");
+        return inventory;
+    }
+
+    /**
+     * Puts vault contents into a fresh inventory, touching only the occupied slots.
+     *
+     * @param inventory the empty inventory
+     * @param contents the vault contents
+     */
+    private static void fill(Inventory inventory, VaultContents contents) {
+        int size = inventory.getSize();
+        List<ItemStack> overflow = null;
+        for (int slot = 0; slot < contents.getSize(); slot++) {
+            ItemStack stack = contents.isOccupied(slot) ? contents.getItem(slot) : null;
+            if (stack == null) {
+                continue;
+            }
+            if (slot < size) {
+                inventory.setItem(slot, stack);
+            } else {
+                if (overflow == null) {
+                    overflow = new ArrayList<>();
                 }
+                overflow.add(stack);
             }
-        } else {
-            inventory.setContents(deserialized);
         }
 
-        PlayerVaults.debug("Loaded vault");
-        return inventory;
+        // The vault holds more slots than allowed here.
+        // Happens on change of permission or if people used the broken version.
+        // Whatever doesn't fit into free slots is lost.
+        if (overflow != null) {
+            inventory.addItem(overflow.toArray(new ItemStack[0]));
+        }
     }
 
     /**
@@ -193,11 +496,18 @@ public class VaultManager {
      * @return The inventory of the specified holder and vault number. Can be null.
      */
     public Inventory getVault(String holder, int number) {
-        YamlConfiguration playerFile = getPlayerVaultFile(holder, true);
-        String serialized = playerFile.getString(String.format(VAULTKEY, number));
-        ItemStack[] contents = CardboardBoxSerialization.fromStorage(serialized, holder);
-        Inventory inventory = Bukkit.createInventory(null, contents.length, holder + " vault " + number);
-        inventory.setContents(contents);
+        VaultContents contents;
+        try {
+            contents = loadContents(holder, number);
+        } catch (IOException e) {
+            logLoadFailure(holder, number, e);
+            return null;
+        }
+        int size = contents == null || contents.getSize() == 0 ? 6 * 9 : contents.getSize();
+        Inventory inventory = Bukkit.createInventory(null, size, holder + " vault " + number);
+        if (contents != null) {
+            fill(inventory, contents);
+        }
         return inventory;
     }
 
@@ -206,15 +516,19 @@ public class VaultManager {
      *
      * @param holder holder of the vault.
      * @param number vault number.
-     * @return true if the vault file and vault number exist in that file, otherwise false.
+     * @return true if the vault exists in storage, otherwise false.
      */
     public boolean vaultExists(String holder, int number) {
-        File file = new File(directory, holder + ".yml");
-        if (!file.exists()) {
+        ItemStack[] queued = saveQueue.getQueued(new VaultKey(holder, number));
+        if (queued != null) {
+            return queued != VaultSaveQueue.DELETED;
+        }
+        try {
+            return storage.exists(holder, number);
+        } catch (IOException e) {
+            PlayerVaults.getInstance().getLogger().log(Level.SEVERE, "Failed to check vault " + number + " for: " + holder, e);
             return false;
         }
-
-        return getPlayerVaultFile(holder, true).contains(String.format(VAULTKEY, number));
     }
 
     /**
@@ -224,29 +538,37 @@ public class VaultManager {
      * @return a set of Integers, which are player's vaults' numbers (fuck grammar).
      */
     public Set<Integer> getVaultNumbers(String holder) {
-        Set<Integer> vaults = new HashSet<>();
-        YamlConfiguration file = getPlayerVaultFile(holder, true);
-        if (file == null) {
-            return vaults;
-        }
-
-        for (String s : file.getKeys(false)) {
-            try {
-                // vault%
-                int number = Integer.parseInt(s.substring(4));
-                vaults.add(number);
-            } catch (NumberFormatException e) {
-                // silent
-            }
+        Set<Integer> vaults;
+        try {
+            vaults = storage.list(holder);
+        } catch (IOException e) {
+            PlayerVaults.getInstance().getLogger().log(Level.SEVERE, "Failed to list vaults for: " + holder, e);
+            vaults = new HashSet<>();
         }
-
-
+        saveQueue.applyQueued(holder, vaults);
         return vaults;
     }
 
+    /**
+     * Checks if any save or delete of a holder's vaults is waiting to be written.
+     *
+     * @param holder The vault holder.
+     * @return Whether anything is queued.
+     */
+    public boolean hasQueuedSaves(String holder) {
+        return saveQueue.hasQueued(holder);
+    }
+
     public void deleteAllVaults(String holder) {
-        removeCachedPlayerVaultFile(holder);
-        deletePlayerVaultFile(holder);
+        saveQueue.cancel(holder);
+        try {
+            storage.deleteAll(holder);
+        } catch (IOException e) {
+            PlayerVaults.getInstance().addException(new IllegalStateException("Failed to delete vaults for: " + holder, e));
+            PlayerVaults.getInstance().getLogger().log(Level.SEVERE, "Failed to delete vaults for: " + holder, e);
+        } finally {
+            cache.invalidateAll(holder);
+        }
     }
 
     /**
@@ -255,30 +577,9 @@ public class VaultManager {
      * @param sender The sender of whom to send messages to.
      * @param holder The vault holder.
      * @param number The vault number.
-     * @throws IOException Uh oh!
      */
     public void deleteVault(CommandSender sender, final String holder, final int number) {
-        new BukkitRunnable() {
-            @Override
-            public void run() {
-                File file = new File(directory, holder + ".yml");
-                if (!file.exists()) {
-                    return;
-                }
-
-                YamlConfiguration playerFile = YamlConfiguration.loadConfiguration(file);
-                if (file.exists()) {
-                    playerFile.set(String.format(VAULTKEY, number), null);
-                    if (cachedVaultFiles.containsKey(holder)) {
-                        cachedVaultFiles.put(holder, playerFile);
-                    }
-                    try {
-                        playerFile.save(file);
-                    } catch (IOException ignored) {
-                    }
-                }
-            }
-        }.runTaskAsynchronously(PlayerVaults.getInstance());
+        saveQueue.delete(new VaultKey(holder, number));
 
         OfflinePlayer player = Bukkit.getPlayer(holder);
         if (player != null) {
@@ -290,88 +591,60 @@ public class VaultManager {
         }
 
         String vaultName = sender instanceof Player ? ((Player) sender).getUniqueId().toString() : holder;
-        PlayerVaults.getInstance().getOpenInventories().remove(new VaultViewInfo(vaultName, number).toString());
-    }
-
-    // Should only be run asynchronously
-    public void cachePlayerVaultFile(String holder) {
-        YamlConfiguration config = this.loadPlayerVaultFile(holder, false);
-        if (config != null) {
-            this.cachedVaultFiles.put(holder, config);
-        }
-    }
-
-    public void removeCachedPlayerVaultFile(String holder) {
-        cachedVaultFiles.remove(holder);
+        PlayerVaults.getInstance().getSessions().removeInventory(new VaultViewInfo(vaultName, number));
     }
 
     /**
-     * Get the holder's vault file. Create if doesn't exist.
+     * Queues a stored vault to be rewritten with the current format and compression, waiting if the
+     * save queue is busy. Should only be run asynchronously.
      *
      * @param holder The vault holder.
-     * @return The holder's vault config file.
+     * @param number The vault number.
+     * @return false if the plugin is shutting down.
+     * @throws InterruptedException if interrupted while waiting.
      */
-    public YamlConfiguration getPlayerVaultFile(String holder, boolean createIfNotFound) {
-        if (cachedVaultFiles.containsKey(holder)) {
-            return cachedVaultFiles.get(holder);
-        }
-        return loadPlayerVaultFile(holder, createIfNotFound);
-    }
-
-    public YamlConfiguration loadPlayerVaultFile(String holder) {
-        return this.loadPlayerVaultFile(holder, true);
+    public boolean recompressVault(String holder, int number) throws InterruptedException {
+        return saveQueue.recode(new VaultKey(holder, number));
     }
 
     /**
-     * Attempt to delete a vault file.
+     * Loads all vaults of a holder into the cache, with their items already deserialized if the cache keeps
+     * items. Opening one of them meanwhile waits for this rather than reading it again.
+     * Should only be run asynchronously.
      *
-     * @param holder UUID of the holder.
+     * @param holder The vault holder.
      */
-    public void deletePlayerVaultFile(String holder) {
-        File file = new File(this.directory, holder + ".yml");
-        if (file.exists()) {
-            file.delete();
-        }
-    }
-
-    public YamlConfiguration loadPlayerVaultFile(String uniqueId, boolean createIfNotFound) {
-        if (!this.directory.exists()) {
-            this.directory.mkdir();
-        }
-
-        File file = new File(this.directory, uniqueId + ".yml");
-        if (!file.exists()) {
-            if (createIfNotFound) {
-                try {
-                    file.createNewFile();
-                } catch (IOException e) {
-                    e.printStackTrace();
+    public void cachePlayerVaultFile(String holder) {
+        long start = System.currentTimeMillis();
+        storage.preload(holder);
+        for (int number : getVaultNumbers(holder)) {
+            try {
+                VaultContents contents = loadContents(holder, number);
+                if (contents != null && cache.retainsItems()) {
+                    contents.toArray();
                 }
-            } else {
-                return null;
+            } catch (IOException | RuntimeException e) {
+                logLoadFailure(holder, number, e);
             }
         }
+        PlayerVaults.debug("Prefetched vaults of " + holder, start);
+    }
 
-        return YamlConfiguration.loadConfiguration(file);
+    public void removeCachedPlayerVaultFile(String holder) {
+        storage.unload(holder);
+        cache.invalidateAll(holder);
     }
 
-    public void saveFileSync(final String holder, final YamlConfiguration yaml) {
-        if (cachedVaultFiles.containsKey(holder)) {
-            cachedVaultFiles.put(holder, yaml);
-        }
+    /**
+     * Writes out all queued saves and closes the storage. Called on disable.
+     */
+    public void shutdown() {
+        saveQueue.shutdown(plugin.getConf().getStorage().getShutdownTimeout() * 1000L);
+        storage.close();
+    }
 
-        final boolean backups = PlayerVaults.getInstance().isBackupsEnabled();
-        final File backupsFolder = PlayerVaults.getInstance().getBackupsFolder();
-        final File file = new File(directory, holder + ".yml");
-        if (file.exists() && backups) {
-            file.renameTo(new File(backupsFolder, holder + ".yml"));
-        }
-        try {
-            yaml.save(file);
-        } catch (IOException e) {
-            PlayerVaults.getInstance().addException(new IllegalStateException("Failed to save vault file for: " + holder, e));
-            PlayerVaults.getInstance().getLogger().log(Level.SEVERE, "Failed to save vault file for: " + holder, e);
-        }
-        PlayerVaults.debug("Saved vault for " + holder);
+    private void logLoadFailure(String holder, int number, Exception e) {
+        PlayerVaults.getInstance().addException(new IllegalStateException("Failed to load vault " + number + " for: " + holder, e));
+        PlayerVaults.getInstance().getLogger().log(Level.SEVERE, "Failed to load vault " + number + " for: " + holder, e);
     }
 }
@@ -27,12 +27,16 @@ import org.bukkit.inventory.CraftingInventory;
 import org.bukkit.inventory.Inventory;
 import org.bukkit.inventory.InventoryView;
 
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class VaultOperations {
 
     private static final AtomicBoolean LOCKED = new AtomicBoolean(false);
+    // Players whose vault is being read in the background, they can't start another open until it's shown.
+    private static final Set<UUID> OPENING = ConcurrentHashMap.newKeySet();
 
     /**
      * Gets whether or not player vaults are locked
@@ -65,6 +69,25 @@ public class VaultOperations {
         }
     }
 
+    /**
+     * Gets whether a vault is being loaded for the player, and will be opened shortly.
+     *
+     * @param player the player
+     * @return true if an open is in progress
+     */
+    public static boolean isOpening(Player player) {
+        return OPENING.contains(player.getUniqueId());
+    }
+
+    /**
+     * Forgets any vault being loaded for the player, so a load that never finishes can't block them.
+     *
+     * @param player the player
+     */
+    public static void cancelOpening(Player player) {
+        OPENING.remove(player.getUniqueId());
+    }
+
     /**
      * Check whether or not the player has permission to open the requested vault.
      *
@@ -73,6 +96,9 @@ public class VaultOperations {
      * @return Whether or not they have permission.
      */
     public static boolean checkPerms(CommandSender sender, int number) {
+        if (sender instanceof Player) {
+            return VaultPermissions.getInstance().canOpen((Player) sender, number);
+        }
         if (sender.hasPermission("playervaults.amount." + number)) {
             return true;
         }
@@ -91,14 +117,33 @@ public class VaultOperations {
      * @return max size as integer. If no max size is set then it will default to the configured default.
      */
     public static int getMaxVaultSize(String name) {
-        try {
-            UUID uuid = UUID.fromString(name);
-            return getMaxVaultSize(Bukkit.getOfflinePlayer(uuid));
-        } catch (Exception e) {
-            // Not a UUID
+        UUID uuid = toUUID(name);
+        if (uuid == null) {
+            return PlayerVaults.getInstance().getDefaultVaultSize();
+        }
+        Player player = Bukkit.getPlayer(uuid);
+        if (player != null) {
+            return getMaxVaultSize(player);
         }
+        int lastKnown = VaultPermissions.getInstance().getLastKnownSize(uuid);
+        return lastKnown > 0 ? lastKnown : 6 * 9;
+    }
 
-        return PlayerVaults.getInstance().getDefaultVaultSize();
+    /**
+     * Parses a holder name as a UUID, only trying if it looks like one.
+     *
+     * @param name the holder name
+     * @return the UUID, or null if the name isn't one
+     */
+    private static UUID toUUID(String name) {
+        if (name.length() != 36 || name.charAt(8) != '-' || name.charAt(13) != '-' || name.charAt(18) != '-' || name.charAt(23) != '-') {
+            return null;
+        }
+        try {
+            return UUID.fromString(name);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
     }
 
     /**
@@ -108,19 +153,18 @@ public class VaultOperations {
      * @return max size as integer. If no max size is set then it will default to the configured default.
      */
     public static int getMaxVaultSize(OfflinePlayer player) {
-        if (player == null || !player.isOnline()) {
+        if (player == null) {
             return 6 * 9;
         }
-        for (int i = 6; i != 0; i--) {
-            if (player.getPlayer().hasPermission("playervaults.size." + i)) {
-                return i * 9;
-            }
+        if (!player.isOnline()) {
+            int lastKnown = VaultPermissions.getInstance().getLastKnownSize(player.getUniqueId());
+            return lastKnown > 0 ? lastKnown : 6 * 9;
         }
-        return PlayerVaults.getInstance().getDefaultVaultSize();
+        return VaultPermissions.getInstance().getMaxSize(player.getPlayer());
     }
 
     /**
-     * Open a player's own vault.
+     * Open a player's own vault. The vault is read in the background and opened on a later tick.
      *
      * @param player The player to open to.
      * @param arg The vault number to open.
@@ -141,6 +185,10 @@ public class VaultOperations {
         if (player.isSleeping() || player.isDead() || !player.isOnline()) {
             return false;
         }
+        if (isOpening(player)) {
+            PlayerVaults.debug(String.format("Ignoring vault %s for %s, already opening one.", arg, player.getName()));
+            return false;
+        }
         int number;
         try {
             number = Integer.parseInt(arg);
@@ -153,27 +201,33 @@ public class VaultOperations {
         }
 
         if (checkPerms(player, number)) {
-            if (free || EconomyOperations.payToOpen(player, number)) {
-                Inventory inv = VaultManager.getInstance().loadOwnVault(player, number, getMaxVaultSize(player));
-                if (inv == null) {
-                    PlayerVaults.debug(String.format("Failed to open null vault %d for %s. This is weird.", number, player.getName()));
-                    return false;
-                }
-
-                player.openInventory(inv);
-
-                // Check if the inventory was actually opened
-                if (player.getOpenInventory().getTopInventory() instanceof CraftingInventory || player.getOpenInventory().getTopInventory() == null) {
-                    PlayerVaults.debug(String.format("Cancelled opening vault %s for %s from an outside source.", arg, player.getName()));
-                    return false; // inventory open event was cancelled.
-                }
+            // Only checked here; the fee is taken once the vault is actually open.
+            if (free || EconomyOperations.canPayToOpen(player, number)) {
+                OPENING.add(player.getUniqueId());
+                VaultManager.getInstance().loadOwnVaultAsync(player, number, getMaxVaultSize(player), inv -> {
+                    OPENING.remove(player.getUniqueId());
+                    if (inv == null) {
+                        PlayerVaults.debug(String.format("Failed to open null vault %d for %s. This is weird.", number, player.getName()));
+                        return;
+                    }
+                    if (!show(player, inv, arg)) {
+                        return;
+                    }
+                    if (!free && !EconomyOperations.payToOpen(player, number)) {
+                        // Not viewing yet, so closing doesn't save anything.
+                        player.closeInventory();
+                        PlayerVaults.getInstance().getTL().insufficientFunds().title().send(player);
+                        return;
+                    }
 
-                VaultViewInfo info = new VaultViewInfo(player.getUniqueId().toString(), number);
-                PlayerVaults.getInstance().getOpenInventories().put(info.toString(), inv);
+                    VaultViewInfo info = new VaultViewInfo(player.getUniqueId().toString(), number);
+                    PlayerVaults.getInstance().getSessions().putInventory(info, inv);
+                    PlayerVaults.getInstance().getSessions().setViewing(player, info);
 
-                if (send) {
-                    PlayerVaults.getInstance().getTL().openVault().title().with("vault", arg).send(player);
-                }
+                    if (send) {
+                        PlayerVaults.getInstance().getTL().openVault().title().with("vault", arg).send(player);
+                    }
+                });
                 return true;
             } else {
                 PlayerVaults.getInstance().getTL().insufficientFunds().title().send(player);
@@ -202,7 +256,7 @@ public class VaultOperations {
     }
 
     /**
-     * Open another player's vault.
+     * Open another player's vault. The vault is read in the background and opened on a later tick.
      *
      * @param player The player to open to.
      * @param vaultOwner The name of the vault owner.
@@ -221,6 +275,10 @@ public class VaultOperations {
         if (player.isSleeping() || player.isDead() || !player.isOnline()) {
             return false;
         }
+        if (isOpening(player)) {
+            PlayerVaults.debug(String.format("Ignoring vault %s of %s for %s, already opening one.", arg, vaultOwner, player.getName()));
+            return false;
+        }
 
         long time = System.currentTimeMillis();
 
@@ -233,9 +291,9 @@ public class VaultOperations {
             }
         } catch (NumberFormatException nfe) {
             PlayerVaults.getInstance().getTL().mustBeNumber().title().send(player);
+            return false;
         }
 
-        Inventory inv = VaultManager.getInstance().loadOtherVault(vaultOwner, number, getMaxVaultSize(vaultOwner));
         String name = vaultOwner;
         try {
             OfflinePlayer offlinePlayer = Bukkit.getOfflinePlayer(UUID.fromString(vaultOwner));
@@ -244,30 +302,53 @@ public class VaultOperations {
             // not a player
         }
 
-        if (inv == null) {
-            PlayerVaults.getInstance().getTL().vaultDoesNotExist().title().send(player);
-        } else {
-            player.openInventory(inv);
-
-            // Check if the inventory was actually opened
-            if (player.getOpenInventory().getTopInventory() instanceof CraftingInventory || player.getOpenInventory().getTopInventory() == null) {
-                PlayerVaults.debug(String.format("Cancelled opening vault %s for %s from an outside source.", arg, player.getName()));
-                return false; // inventory open event was cancelled.
+        String owner = name;
+        int vault = number;
+        OPENING.add(player.getUniqueId());
+        VaultManager.getInstance().loadOtherVaultAsync(vaultOwner, number, getMaxVaultSize(vaultOwner), inv -> {
+            OPENING.remove(player.getUniqueId());
+            if (inv == null) {
+                PlayerVaults.getInstance().getTL().vaultDoesNotExist().title().send(player);
+                PlayerVaults.debug("opening other vault failed", time);
+                return;
+            }
+            if (!show(player, inv, arg)) {
+                return;
             }
             if (send) {
-                PlayerVaults.getInstance().getTL().openOtherVault().title().with("vault", arg).with("player", name).send(player);
+                PlayerVaults.getInstance().getTL().openOtherVault().title().with("vault", arg).with("player", owner).send(player);
             }
             PlayerVaults.debug("opening other vault", time);
 
             // Need to set ViewInfo for a third party vault for the opening player.
-            VaultViewInfo info = new VaultViewInfo(vaultOwner, number);
-            PlayerVaults.getInstance().getInVault().put(player.getUniqueId().toString(), info);
-            PlayerVaults.getInstance().getOpenInventories().put(player.getUniqueId().toString(), inv);
-            return true;
+            VaultViewInfo info = new VaultViewInfo(vaultOwner, vault);
+            PlayerVaults.getInstance().getSessions().setViewing(player, info);
+        });
+        return true;
+    }
+
+    /**
+     * Shows a loaded vault, unless things changed while it was loading.
+     *
+     * @param player The player to open to.
+     * @param inv The vault.
+     * @param arg The vault number, for debug output.
+     * @return Whether or not the vault is now open.
+     */
+    private static boolean show(Player player, Inventory inv, String arg) {
+        if (isLocked() || !player.isOnline() || player.isDead() || PlayerVaults.getInstance().getSessions().isInVault(player)) {
+            PlayerVaults.debug(String.format("Not opening vault %s for %s, which changed state while it loaded.", arg, player.getName()));
+            return false;
         }
 
-        PlayerVaults.debug("opening other vault returning false", time);
-        return false;
+        player.openInventory(inv);
+
+        // Check if the inventory was actually opened
+        if (player.getOpenInventory().getTopInventory() instanceof CraftingInventory || player.getOpenInventory().getTopInventory() == null) {
+            PlayerVaults.debug(String.format("Cancelled opening vault %s for %s from an outside source.", arg, player.getName()));
+            return false; // inventory open event was cancelled.
+        }
+        return true;
     }
 
     /**
@@ -0,0 +1,202 @@
+/*
+ * PlayerVaultsX
+ * Copyright (C) 2013 Trent Hensler
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.drtshock.playervaults.vaultmanagement;
+
+import com.drtshock.playervaults.PlayerVaults;
+import org.bukkit.entity.Player;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+/**
+ * How many vaults, and how large, players may have. Working that out takes up to a hundred permission checks,
+ * so it's done once per player and cached for a while, and again whenever the player joins, changes worlds or
+ * the plugin is reloaded.
+ * <p>
+ * The last tier seen for every player is kept in {@code tiers.dat}, so vaults of offline players can be
+ * opened at the size their owner sees.
+ */
+public class VaultPermissions {
+
+    private static VaultPermissions instance;
+    private final PlayerVaults plugin;
+    private final File file;
+    private final Map<UUID, Tier> online = new ConcurrentHashMap<>();
+    private final Map<UUID, Tier> lastKnown = new ConcurrentHashMap<>();
+
+    public VaultPermissions(PlayerVaults plugin) {
+        this.plugin = plugin;
+        this.file = new File(plugin.getDataFolder(), "tiers.dat");
+        read();
+        instance = this;
+    }
+
+    /**
+     * Get the instance of this class.
+     *
+     * @return - instance of this class.
+     */
+    public static VaultPermissions getInstance() {
+        return instance;
+    }
+
+    private static final class Tier {
+
+        private final int maxVault;
+        private final int maxSize;
+        private final long expires;
+
+        private Tier(int maxVault, int maxSize, long expires) {
+            this.maxVault = maxVault;
+            this.maxSize = maxSize;
+            this.expires = expires;
+        }
+    }
+
+    private Tier getTier(Player player) {
+        long now = System.currentTimeMillis();
+        Tier tier = online.get(player.getUniqueId());
+        if (tier == null || now > tier.expires) {
+            tier = new Tier(findMaxVault(player), findMaxSize(player), now + plugin.getConf().getPermissionCacheSeconds() * 1000L);
+            online.put(player.getUniqueId(), tier);
+            lastKnown.put(player.getUniqueId(), tier);
+            PlayerVaults.debug("Vault permissions of " + player.getName() + ": " + tier.maxVault + " vaults of " + tier.maxSize + " slots");
+        }
+        return tier;
+    }
+
+    private int findMaxVault(Player player) {
+        for (int x = plugin.getMaxVaultAmountPermTest(); x > 0; x--) {
+            if (player.hasPermission("playervaults.amount." + x)) {
+                return x;
+            }
+        }
+        return 0;
+    }
+
+    private int findMaxSize(Player player) {
+        for (int i = 6; i != 0; i--) {
+            if (player.hasPermission("playervaults.size." + i)) {
+                return i * 9;
+            }
+        }
+        return plugin.getDefaultVaultSize();
+    }
+
+    /**
+     * Checks if a player may open a vault number.
+     *
+     * @param player the player
+     * @param number the vault number
+     * @return true if allowed
+     */
+    public boolean canOpen(Player player, int number) {
+        if (getTier(player).maxVault >= number) {
+            return true;
+        }
+        // Numbers past the tested range can only be granted one by one.
+        return number > plugin.getMaxVaultAmountPermTest() && player.hasPermission("playervaults.amount." + number);
+    }
+
+    /**
+     * Gets the largest vault a player may have.
+     *
+     * @param player the player
+     * @return the size in slots
+     */
+    public int getMaxSize(Player player) {
+        return getTier(player).maxSize;
+    }
+
+    /**
+     * Gets the size a player last had for their vaults, for when they aren't online.
+     *
+     * @param holder the player
+     * @return the size in slots, or 0 if never seen
+     */
+    public int getLastKnownSize(UUID holder) {
+        Tier tier = lastKnown.get(holder);
+        return tier == null ? 0 : tier.maxSize;
+    }
+
+    /**
+     * Forgets the cached tier of a player, so it's worked out again next time.
+     *
+     * @param player the player
+     */
+    public void invalidate(Player player) {
+        online.remove(player.getUniqueId());
+    }
+
+    /**
+     * Forgets the cached tiers of all players. Last known tiers are kept.
+     */
+    public void invalidateAll() {
+        online.clear();
+    }
+
+    private void read() {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                UUID uuid = new UUID(in.readLong(), in.readLong());
+                lastKnown.put(uuid, new Tier(in.readInt(), in.readInt(), 0));
+            }
+        } catch (NoSuchFileException e) {
+            // Nothing seen yet.
+        } catch (IOException e) {
+            lastKnown.clear();
+            plugin.getLogger().log(Level.WARNING, "Failed to read last known vault permissions", e);
+        }
+    }
+
+    /**
+     * Saves the last known tier of every player. Called on disable.
+     */
+    public void save() {
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp.toPath())))) {
+                Map<UUID, Tier> tiers = new HashMap<>(lastKnown);
+                out.writeInt(tiers.size());
+                for (Map.Entry<UUID, Tier> entry : tiers.entrySet()) {
+                    out.writeLong(entry.getKey().getMostSignificantBits());
+                    out.writeLong(entry.getKey().getLeastSignificantBits());
+                    out.writeInt(entry.getValue().maxVault);
+                    out.writeInt(entry.getValue().maxSize);
+                }
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING, "Failed to save last known vault permissions", e);
+        }
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * PlayerVaultsX
+ * Copyright (C) 2013 Trent Hensler
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.drtshock.playervaults.vaultmanagement;
+
+import com.drtshock.playervaults.PlayerVaults;
+import com.drtshock.playervaults.storage.VaultKey;
+import com.drtshock.playervaults.storage.VaultStorage;
+import org.bukkit.inventory.ItemStack;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes vaults behind the caller's back. Callers hand over a snapshot of the contents, serializing and
+ * writing happens on a dedicated thread. A vault queued again before it was written is only written once.
+ */
+class VaultSaveQueue {
+
+    /**
+     * Queued contents marking a vault deletion.
+     */
+    static final ItemStack[] DELETED = new ItemStack[0];
+    /**
+     * Queued contents marking a rewrite of the stored vault with the current format and compression.
+     */
+    private static final ItemStack[] RECODE = new ItemStack[0];
+
+    private final Logger logger;
+    private final VaultStorage storage;
+    private final VaultCache<?> cache;
+    private final Map<VaultKey, ?> loading;
+    // Queued saves at which recompression waits.
+    private final int throttle;
+    private final Object lock = new Object();
+    // Guarded by lock.
+    private final LinkedHashMap<VaultKey, ItemStack[]> pending = new LinkedHashMap<>();
+    // Guarded by lock. The vault the writer is working on.
+    private VaultKey inFlightKey;
+    private ItemStack[] inFlightContents;
+    private Thread writer;
+    private boolean running;
+    // Guarded by lock. Tells the writer to stop after the vault it's on, leaving the rest queued.
+    private boolean stopped;
+
+    VaultSaveQueue(Logger logger, VaultStorage storage, VaultCache<?> cache, Map<VaultKey, ?> loading, int throttle) {
+        this.logger = logger;
+        this.storage = storage;
+        this.cache = cache;
+        this.loading = loading;
+        this.throttle = Math.max(1, throttle);
+    }
+
+    void start() {
+        synchronized (lock) {
+            this.running = true;
+        }
+        this.writer = new Thread(this::writeLoop, "PlayerVaults save queue");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Queues a vault to be saved.
+     *
+     * @param key the vault
+     * @param contents snapshot of the contents, must not be modified afterwards
+     */
+    void save(VaultKey key, ItemStack[] contents) {
+        queue(key, contents);
+    }
+
+    /**
+     * Queues a vault to be deleted, replacing any save queued for it.
+     *
+     * @param key the vault
+     */
+    void delete(VaultKey key) {
+        queue(key, DELETED);
+    }
+
+    /**
+     * Queues a stored vault to be rewritten with the current format and compression. Waits while as many
+     * vaults as the throttle are queued, so player saves don't wait behind recompression.
+     *
+     * @param key the vault
+     * @return false if the queue was shut down
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean recode(VaultKey key) throws InterruptedException {
+        synchronized (lock) {
+            while (running && pending.size() >= throttle) {
+                lock.wait();
+            }
+            if (!running) {
+                return false;
+            }
+            // Anything already queued for the vault is written in the current format anyway.
+            if (!pending.containsKey(key)) {
+                pending.put(key, RECODE);
+                lock.notifyAll();
+            }
+            return true;
+        }
+    }
+
+    private void queue(VaultKey key, ItemStack[] contents) {
+        synchronized (lock) {
+            // An already queued vault keeps its place, it just gets newer contents. The queue is never full:
+            // it holds at most one entry per vault, and blocking the main thread on it would stall the server.
+            if (running) {
+                pending.put(key, contents);
+                lock.notifyAll();
+                return;
+            }
+        }
+        // Only after shutdown, from the disabling thread.
+        PlayerVaults.debug("Save queue stopped, writing " + key + " directly");
+        write(key, contents);
+    }
+
+    /**
+     * Gets the contents queued for a vault but not yet written.
+     *
+     * @param key the vault
+     * @return the queued contents, {@link #DELETED} if a deletion is queued, or null if nothing is queued
+     */
+    ItemStack[] getQueued(VaultKey key) {
+        synchronized (lock) {
+            ItemStack[] queued = pending.get(key);
+            if (queued == null && key.equals(inFlightKey)) {
+                queued = inFlightContents;
+            }
+            return queued == RECODE ? null : queued;
+        }
+    }
+
+    /**
+     * Checks if anything is queued or being written for a holder.
+     *
+     * @param holder the holder
+     * @return true if there is
+     */
+    boolean hasQueued(String holder) {
+        synchronized (lock) {
+            if (inFlightKey != null && inFlightKey.getHolder().equals(holder)) {
+                return true;
+            }
+            for (VaultKey key : pending.keySet()) {
+                if (key.getHolder().equals(holder)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Applies queued saves and deletions of a holder to a set of their vault numbers.
+     *
+     * @param holder the holder
+     * @param vaults vault numbers as found in storage
+     */
+    void applyQueued(String holder, Set<Integer> vaults) {
+        synchronized (lock) {
+            if (inFlightKey != null && inFlightKey.getHolder().equals(holder)) {
+                apply(inFlightKey, inFlightContents, vaults);
+            }
+            for (Map.Entry<VaultKey, ItemStack[]> entry : pending.entrySet()) {
+                if (entry.getKey().getHolder().equals(holder)) {
+                    apply(entry.getKey(), entry.getValue(), vaults);
+                }
+            }
+        }
+    }
+
+    private static void apply(VaultKey key, ItemStack[] contents, Set<Integer> vaults) {
+        if (contents == RECODE) {
+            return;
+        }
+        if (contents == DELETED) {
+            vaults.remove(key.getNumber());
+        } else {
+            vaults.add(key.getNumber());
+        }
+    }
+
+    /**
+     * Drops everything queued for a holder and waits until the writer is no longer writing any of their vaults.
+     *
+     * @param holder the holder
+     */
+    void cancel(String holder) {
+        synchronized (lock) {
+            pending.keySet().removeIf(key -> key.getHolder().equals(holder));
+            while (inFlightKey != null && inFlightKey.getHolder().equals(holder)) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops accepting new work and waits for the queue to drain. Once the timeout passes, the writer is
+     * stopped after the vault it's on and whatever is left is written on the calling thread, so nothing queued
+     * is lost. Returns only once the writer has ended, so storage can be closed.
+     *
+     * @param timeout time to wait, in milliseconds
+     */
+    void shutdown(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (lock) {
+            running = false;
+            lock.notifyAll();
+            while (!pending.isEmpty() || inFlightKey != null) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                try {
+                    lock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+
+        synchronized (lock) {
+            stopped = true;
+            lock.notifyAll();
+        }
+        // Its current write has to land before any leftover of the same vault is written here.
+        if (writer != null) {
+            boolean interrupted = false;
+            while (writer.isAlive()) {
+                try {
+                    writer.join(5000);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+                if (writer.isAlive()) {
+                    logger.warning("Still waiting for the save queue to finish writing " + getInFlight());
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        Map<VaultKey, ItemStack[]> remaining;
+        synchronized (lock) {
+            remaining = new LinkedHashMap<>(pending);
+            pending.clear();
+            // Rewrites can wait for the next recompress.
+            remaining.values().removeIf(contents -> contents == RECODE);
+            lock.notifyAll();
+        }
+        if (!remaining.isEmpty()) {
+            logger.warning("Save queue did not drain in time, writing " + remaining.size() + " vaults directly.");
+            for (Map.Entry<VaultKey, ItemStack[]> entry : remaining.entrySet()) {
+                write(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private VaultKey getInFlight() {
+        synchronized (lock) {
+            return inFlightKey;
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            VaultKey key;
+            ItemStack[] contents;
+            synchronized (lock) {
+                while (stopped || pending.isEmpty()) {
+                    if (stopped || !running) {
+                        return;
+                    }
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                Iterator<Map.Entry<VaultKey, ItemStack[]>> iterator = pending.entrySet().iterator();
+                Map.Entry<VaultKey, ItemStack[]> next = iterator.next();
+                iterator.remove();
+                key = inFlightKey = next.getKey();
+                contents = inFlightContents = next.getValue();
+            }
+
+            try {
+                write(key, contents);
+            } finally {
+                synchronized (lock) {
+                    inFlightKey = null;
+                    inFlightContents = null;
+                    lock.notifyAll();
+                }
+            }
+        }
+    }
+
+    private void write(VaultKey key, ItemStack[] contents) {
+        try {
+            writeToStorage(key, contents);
+        } finally {
+            // A read that started before this write must not be joined by anyone asking afterwards.
+            loading.remove(key);
+        }
+    }
+
+    private void writeToStorage(VaultKey key, ItemStack[] contents) {
+        try {
+            if (contents == DELETED) {
+                storage.delete(key.getHolder(), key.getNumber());
+                cache.invalidate(key);
+                PlayerVaults.debug("Deleted vault " + key);
+            } else if (contents == RECODE) {
+                byte[] data = storage.load(key.getHolder(), key.getNumber());
+                byte[] recoded = data == null ? null : CardboardBoxSerialization.recode(data);
+                if (recoded != null) {
+                    storage.save(key.getHolder(), key.getNumber(), recoded);
+                    PlayerVaults.debug("Recompressed vault " + key + ": " + data.length + " -> " + recoded.length + " bytes");
+                }
+            } else {
+                byte[] data = CardboardBoxSerialization.toStorage(contents, key.getHolder());
+                storage.save(key.getHolder(), key.getNumber(), data);
+                cache.put(key, VaultContents.of(contents), data);
+                PlayerVaults.debug("Saved vault for " + key.getHolder());
+            }
+        } catch (Exception e) {
+            // Whatever is in storage now, the cache can no longer vouch for it.
+            cache.invalidate(key);
+            PlayerVaults.getInstance().addException(new IllegalStateException("Failed to write vault " + key, e));
+            logger.log(Level.SEVERE, "Failed to write vault " + key, e);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * PlayerVaultsX
+ * Copyright (C) 2013 Trent Hensler
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.drtshock.playervaults.vaultmanagement;
+
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.Inventory;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Who is looking at which vault, and the inventories of vaults currently open. Viewers are keyed by their
+ * UUID, which players hand out without copying, so the checks done on every click and drag don't allocate.
+ */
+public class VaultSessions {
+
+    private final Map<UUID, Session> viewers = new ConcurrentHashMap<>();
+    private final Map<VaultViewInfo, Inventory> inventories = new ConcurrentHashMap<>();
+
+    /**
+     * Checks if a player is looking at a vault.
+     *
+     * @param player the player
+     * @return true if the player has a vault open
+     */
+    public boolean isInVault(Player player) {
+        return this.viewers.containsKey(player.getUniqueId());
+    }
+
+    /**
+     * Gets the vault a player is looking at.
+     *
+     * @param player the player
+     * @return the vault, or null if none is open
+     */
+    public VaultViewInfo getViewing(Player player) {
+        Session session = this.viewers.get(player.getUniqueId());
+        return session == null ? null : session.info;
+    }
+
+    /**
+     * Checks if blocked items are kept out of the vault a player is looking at. Whether the player may
+     * bypass that is checked once, when the vault is opened.
+     *
+     * @param player the player
+     * @return true if the player has a vault open and can't bypass blocked items
+     */
+    public boolean isBlockingItems(Player player) {
+        Session session = this.viewers.get(player.getUniqueId());
+        return session != null && !session.bypassBlockedItems;
+    }
+
+    /**
+     * Records that a player is looking at a vault.
+     *
+     * @param player the player
+     * @param info the vault
+     */
+    public void setViewing(Player player, VaultViewInfo info) {
+        this.viewers.put(player.getUniqueId(), new Session(info, player.hasPermission("playervaults.bypassblockeditems")));
+    }
+
+    /**
+     * Records that a player stopped looking at their vault.
+     *
+     * @param player the player
+     * @return the vault they were looking at, or null if none
+     */
+    public VaultViewInfo stopViewing(Player player) {
+        Session session = this.viewers.remove(player.getUniqueId());
+        return session == null ? null : session.info;
+    }
+
+    /**
+     * Gets the inventory of an open vault, shared by everyone looking at it.
+     *
+     * @param info the vault
+     * @return the inventory, or null if the vault isn't open
+     */
+    public Inventory getInventory(VaultViewInfo info) {
+        return this.inventories.get(info);
+    }
+
+    /**
+     * Records the inventory of a vault that was just opened.
+     *
+     * @param info the vault
+     * @param inventory the inventory
+     */
+    public void putInventory(VaultViewInfo info, Inventory inventory) {
+        this.inventories.put(info, inventory);
+    }
+
+    /**
+     * Forgets the inventory of a vault, so the next open loads it again.
+     *
+     * @param info the vault
+     */
+    public void removeInventory(VaultViewInfo info) {
+        this.inventories.remove(info);
+    }
+
+    private static final class Session {
+
+        private final VaultViewInfo info;
+        private final boolean bypassBlockedItems;
+
+        private Session(VaultViewInfo info, boolean bypassBlockedItems) {
+            this.info = info;
+            this.bypassBlockedItems = bypassBlockedItems;
+        }
+    }
+}
@@ -25,6 +25,7 @@ public class VaultViewInfo {
 
     final String vaultName;
     final int number;
+    private final int hash;
 
     /**
      * Makes a VaultViewInfo object. Used for opening a vault owned by the opener.
@@ -34,6 +35,7 @@ public class VaultViewInfo {
     public VaultViewInfo(String vaultName, int i) {
         this.number = i;
         this.vaultName = vaultName;
+        this.hash = 31 * vaultName.hashCode() + i;
     }
 
     /**
@@ -54,6 +56,23 @@ public class VaultViewInfo {
         return this.number;
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof VaultViewInfo)) {
+            return false;
+        }
+        VaultViewInfo other = (VaultViewInfo) o;
+        return this.number == other.number && this.vaultName.equals(other.vaultName);
+    }
+
+    @Override
+    public int hashCode() {
+        return this.hash;
+    }
+
     @Override
     public String toString() {
         return this.vaultName + " " + this.number;
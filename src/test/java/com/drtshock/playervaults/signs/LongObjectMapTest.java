@@ -0,0 +1,114 @@
+/*
+ * PlayerVaultsX
+ * Copyright (C) 2013 Trent Hensler
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.drtshock.playervaults.signs;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LongObjectMapTest {
+
+    @Test
+    public void putGetRemove() {
+        LongObjectMap<String> map = new LongObjectMap<>();
+        assertNull(map.put(1, "a"));
+        assertEquals("a", map.put(1, "b"));
+        assertEquals("b", map.get(1));
+        assertNull(map.get(2));
+        assertEquals("b", map.remove(1));
+        assertNull(map.remove(1));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void edgeKeys() {
+        LongObjectMap<Long> map = new LongObjectMap<>();
+        long[] keys = {0, -1, Long.MIN_VALUE, Long.MAX_VALUE, 1L << 32, -(1L << 32)};
+        for (long key : keys) {
+            map.put(key, key);
+        }
+        for (long key : keys) {
+            assertEquals(Long.valueOf(key), map.get(key));
+        }
+        assertEquals(keys.length, map.size());
+    }
+
+    /**
+     * Removing from the middle of a probe run must move later entries of the run back, or lookups for them
+     * stop early at the hole. Keys sharing a home slot make long runs, including ones wrapping around the end.
+     */
+    @Test
+    public void removeShiftsBackCollidingKeys() {
+        LongObjectMap<Long> map = new LongObjectMap<>();
+        // Grown to 64 slots with 20 keys, then only keys homed in the last slots are used.
+        List<Long> keys = new ArrayList<>();
+        for (long key = 0; keys.size() < 20; key++) {
+            if ((home(key) & 63) >= 60) {
+                keys.add(key);
+            }
+        }
+        for (long key : keys) {
+            map.put(key, key);
+        }
+        for (int i = 0; i < keys.size(); i += 2) {
+            assertEquals(keys.get(i), map.remove(keys.get(i)));
+            for (int j = 0; j < keys.size(); j++) {
+                assertEquals("key " + keys.get(j) + " after removing " + keys.get(i), j <= i && j % 2 == 0 ? null : keys.get(j), map.get(keys.get(j)));
+            }
+        }
+        assertEquals(keys.size() / 2, map.size());
+    }
+
+    @Test
+    public void matchesHashMap() {
+        Random random = new Random(42);
+        LongObjectMap<Integer> map = new LongObjectMap<>();
+        Map<Long, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 200000; i++) {
+            // A small key range, so puts and removes keep hitting the same keys.
+            long key = random.nextInt(2000) - 1000;
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                assertEquals(expected.put(key, i), map.put(key, i));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        for (long key = -1000; key < 1000; key++) {
+            assertEquals(expected.get(key), map.get(key));
+        }
+        Map<Long, Integer> visited = new HashMap<>();
+        map.forEach(visited::put);
+        assertEquals(expected, visited);
+    }
+
+    // Same mixing as the map itself.
+    private static int home(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
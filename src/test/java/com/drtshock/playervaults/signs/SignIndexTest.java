@@ -0,0 +1,106 @@
+/*
+ * PlayerVaultsX
+ * Copyright (C) 2013 Trent Hensler
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.drtshock.playervaults.signs;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SignIndexTest {
+
+    // The world border is at 30 million, y stays within 12 bits.
+    private static final int[] XZ = {0, 1, -1, 15, 16, -16, -17, 29_999_999, -30_000_000, (1 << 25) - 1, -(1 << 25)};
+    private static final int[] Y = {0, 1, -1, 255, 319, -64, 2047, -2048};
+
+    @Test
+    public void blockKeysRoundTrip() {
+        for (int x : XZ) {
+            for (int y : Y) {
+                for (int z : XZ) {
+                    long key = SignIndex.blockKey(x, y, z);
+                    assertEquals(x, SignIndex.blockX(key));
+                    assertEquals(y, SignIndex.blockY(key));
+                    assertEquals(z, SignIndex.blockZ(key));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void blockKeysAreDistinct() {
+        Set<Long> keys = new HashSet<>();
+        for (int x : XZ) {
+            for (int y : Y) {
+                for (int z : XZ) {
+                    assertTrue(x + "," + y + "," + z, keys.add(SignIndex.blockKey(x, y, z)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void chunkKeysAreDistinct() {
+        Set<Long> keys = new HashSet<>();
+        for (int x : XZ) {
+            for (int z : XZ) {
+                keys.add(SignIndex.chunkKey(x >> 4, z >> 4));
+            }
+        }
+        Set<String> chunks = new HashSet<>();
+        for (int x : XZ) {
+            for (int z : XZ) {
+                chunks.add((x >> 4) + "," + (z >> 4));
+            }
+        }
+        assertEquals(chunks.size(), keys.size());
+    }
+
+    @Test
+    public void signsAcrossChunkBorders() {
+        SignIndex index = new SignIndex();
+        for (int x : XZ) {
+            for (int z : XZ) {
+                index.put("world", x, 64, z, new VaultSign(x & 7, false, x + ";" + z));
+            }
+        }
+        assertEquals(XZ.length * XZ.length, index.size());
+        for (int x : XZ) {
+            for (int z : XZ) {
+                VaultSign sign = index.get("world", x, 64, z);
+                assertEquals(x + ";" + z, sign.getOwner());
+                assertTrue(index.hasSigns("world", x >> 4, z >> 4));
+                assertNull(index.get("world", x, 65, z));
+                assertNull(index.get("other", x, 64, z));
+            }
+        }
+        for (int x : XZ) {
+            for (int z : XZ) {
+                assertEquals(x + ";" + z, index.remove("world", x, 64, z).getOwner());
+            }
+        }
+        assertTrue(index.isEmpty());
+        assertFalse(index.hasSigns("world", 0, 0));
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * PlayerVaultsX
+ * Copyright (C) 2013 Trent Hensler
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.drtshock.playervaults.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IndexedVaultStorageTest {
+
+    private static final byte[] DATA = {1, 2, 3};
+
+    private File folder;
+    private MemoryStorage storage;
+
+    @Before
+    public void setUp() throws IOException {
+        this.folder = Files.createTempDirectory("index").toFile();
+        this.storage = new MemoryStorage("memory");
+        this.storage.put("a", 1);
+        this.storage.put("b", 1);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = this.folder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        this.folder.delete();
+    }
+
+    private IndexedVaultStorage open() {
+        return new IndexedVaultStorage(this.folder, Logger.getLogger("test"), this.storage);
+    }
+
+    @Test
+    public void replaysChangesWithoutClose() throws IOException {
+        IndexedVaultStorage index = open();
+        assertEquals(set(1), index.list("a"));
+        index.build();
+        index.save("a", 2, DATA);
+        index.delete("a", 1);
+        index.save("c", 4, DATA);
+
+        // As after a crash: the log is all there is.
+        IndexedVaultStorage reopened = open();
+        this.storage.calls = 0;
+        assertTrue(reopened.isComplete());
+        assertEquals(set(2), reopened.list("a"));
+        assertEquals(set(4), reopened.list("c"));
+        assertEquals(new HashSet<>(Arrays.asList("a", "b", "c")), reopened.getHolders());
+        assertEquals(0, this.storage.calls);
+    }
+
+    @Test
+    public void crashMidSaveRelists() throws IOException {
+        IndexedVaultStorage index = open();
+        assertEquals(set(1), index.list("a"));
+        index.build();
+        this.storage.crash = true;
+        try {
+            index.save("a", 2, DATA);
+            fail("storage should have crashed");
+        } catch (CrashError expected) {
+            // The vault was written, but the index never heard back.
+        }
+
+        IndexedVaultStorage reopened = open();
+        this.storage.calls = 0;
+        assertEquals(set(1, 2), reopened.list("a"));
+        assertEquals(1, this.storage.calls);
+        assertEquals(set(1, 2), reopened.list("a"));
+        assertEquals(1, this.storage.calls);
+    }
+
+    @Test
+    public void failedSaveRelists() throws IOException {
+        IndexedVaultStorage index = open();
+        assertEquals(set(1), index.list("a"));
+        this.storage.fail = true;
+        try {
+            index.save("a", 2, DATA);
+            fail("storage should have failed");
+        } catch (IOException expected) {
+            // Partly written, as far as the index knows.
+        }
+        this.storage.calls = 0;
+        assertEquals(set(1, 2), index.list("a"));
+        assertEquals(1, this.storage.calls);
+    }
+
+    @Test
+    public void buildServesHolders() throws IOException {
+        IndexedVaultStorage index = open();
+        assertFalse(index.isComplete());
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), index.getHolders());
+        index.build();
+        assertTrue(index.isComplete());
+
+        this.storage.calls = 0;
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), index.getHolders());
+        assertEquals(Collections.emptySet(), index.list("nobody"));
+        assertEquals(0, index.getLastModified("nobody"));
+        assertEquals(0, this.storage.calls);
+
+        assertEquals(MemoryStorage.MODIFIED, index.getLastModified("a"));
+        assertEquals(MemoryStorage.MODIFIED, index.getLastModified("a"));
+        assertEquals(1, this.storage.calls);
+    }
+
+    @Test
+    public void emptyHoldersAreDropped() throws IOException {
+        // Deleted in storage after it was asked for its holders.
+        this.storage.put("d", 1);
+        this.storage.vaults.get("d").clear();
+        IndexedVaultStorage index = open();
+        index.build();
+        assertEquals(set(1), index.list("a"));
+        index.delete("a", 1);
+        index.deleteAll("b");
+        assertEquals(Collections.singleton("d"), index.getHolders());
+
+        assertEquals(Collections.emptySet(), index.list("d"));
+        assertEquals(Collections.emptySet(), index.getHolders());
+    }
+
+    @Test
+    public void reopensAfterClose() throws IOException {
+        IndexedVaultStorage index = open();
+        assertEquals(set(1), index.list("a"));
+        index.build();
+        index.save("b", 3, DATA);
+        index.close();
+
+        IndexedVaultStorage reopened = open();
+        this.storage.calls = 0;
+        assertTrue(reopened.isComplete());
+        assertEquals(set(1), reopened.list("a"));
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), reopened.getHolders());
+        assertEquals(0, this.storage.calls);
+        // Only listed on demand, never when building.
+        assertEquals(set(1, 3), reopened.list("b"));
+        assertEquals(1, this.storage.calls);
+    }
+
+    @Test
+    public void ignoresIndexOfAnotherStorage() throws IOException {
+        IndexedVaultStorage index = open();
+        index.build();
+        index.close();
+
+        this.storage = new MemoryStorage("other");
+        this.storage.put("e", 1);
+        IndexedVaultStorage reopened = open();
+        assertFalse(reopened.isComplete());
+        assertEquals(Collections.singleton("e"), reopened.getHolders());
+    }
+
+    private static Set<Integer> set(Integer... numbers) {
+        return new HashSet<>(Arrays.asList(numbers));
+    }
+
+    private static final class CrashError extends Error {
+    }
+
+    /**
+     * Keeps vaults in memory, counting every call that has to look through them.
+     */
+    private static final class MemoryStorage implements VaultStorage {
+
+        private static final long MODIFIED = 1234;
+
+        private final String name;
+        private final Map<String, Map<Integer, byte[]>> vaults = new ConcurrentHashMap<>();
+        private int calls;
+        private boolean crash;
+        private boolean fail;
+
+        private MemoryStorage(String name) {
+            this.name = name;
+        }
+
+        private void put(String holder, int number) {
+            this.vaults.computeIfAbsent(holder, key -> new TreeMap<>()).put(number, DATA);
+        }
+
+        @Override
+        public String getName() {
+            return this.name;
+        }
+
+        @Override
+        public byte[] load(String holder, int number) {
+            Map<Integer, byte[]> held = this.vaults.get(holder);
+            return held == null ? null : held.get(number);
+        }
+
+        @Override
+        public void save(String holder, int number, byte[] data) throws IOException {
+            put(holder, number);
+            if (this.crash) {
+                throw new CrashError();
+            }
+            if (this.fail) {
+                throw new IOException("test");
+            }
+        }
+
+        @Override
+        public void delete(String holder, int number) {
+            Map<Integer, byte[]> held = this.vaults.get(holder);
+            if (held != null) {
+                held.remove(number);
+            }
+        }
+
+        @Override
+        public void deleteAll(String holder) {
+            this.vaults.remove(holder);
+        }
+
+        @Override
+        public Set<Integer> list(String holder) {
+            this.calls++;
+            Map<Integer, byte[]> held = this.vaults.get(holder);
+            return held == null ? new HashSet<>() : new HashSet<>(held.keySet());
+        }
+
+        @Override
+        public boolean exists(String holder, int number) {
+            return list(holder).contains(number);
+        }
+
+        @Override
+        public Set<String> getHolders() {
+            this.calls++;
+            return new HashSet<>(this.vaults.keySet());
+        }
+
+        @Override
+        public long getLastModified(String holder) {
+            this.calls++;
+            return MODIFIED;
+        }
+    }
+}
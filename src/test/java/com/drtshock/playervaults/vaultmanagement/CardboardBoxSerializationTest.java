@@ -0,0 +1,275 @@
+/*
+ * PlayerVaultsX
+ * Copyright (C) 2013 Trent Hensler
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.drtshock.playervaults.vaultmanagement;
+
+import com.drtshock.playervaults.config.file.Config;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Reads and rewrites vault blobs at the byte level, with made up item payloads, so no server is needed to
+ * serialize items.
+ */
+public class CardboardBoxSerializationTest {
+
+    private static final int MAGIC = 0x50564C54;
+    private static final int SLOTS = 27;
+
+    private File folder;
+    private Config.Storage.Compression config;
+    private VaultCompression compression;
+    // Slot -> item payload, null for empty slots.
+    private byte[][] items;
+
+    @Before
+    public void setUp() throws IOException {
+        this.folder = Files.createTempDirectory("pv-compression").toFile();
+        this.config = new Config().getStorage().getCompression();
+        this.compression = new VaultCompression(this.folder, Logger.getLogger("test"), () -> this.config);
+        this.items = new byte[SLOTS][];
+        for (int slot = 0; slot < SLOTS; slot += 3) {
+            this.items[slot] = item("diamond_sword;sharpness=" + slot);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        delete(this.folder);
+    }
+
+    @Test
+    public void uncompressedRoundTrip() throws Exception {
+        setCodec("none");
+        byte[] blob = plain();
+        // Already in the current format, nothing to rewrite.
+        assertNull(CardboardBoxSerialization.recode(blob));
+        assertContents(blob);
+    }
+
+    @Test
+    public void deflateRoundTrip() throws Exception {
+        setCodec("deflate");
+        byte[] blob = CardboardBoxSerialization.recode(plain());
+        assertNotNull(blob);
+        assertEquals(VaultCompression.DEFLATE, blob[5]);
+        assertTrue(blob.length < plain().length);
+        assertEquals(body().length, CardboardBoxSerialization.getBodyLength(blob));
+        assertContents(blob);
+    }
+
+    @Test
+    public void dictionaryRoundTrip() throws Exception {
+        setCodec("deflate-dictionary");
+        assertTrue(this.compression.train(Arrays.asList(plain(), plain())) > 0);
+        byte[] blob = CardboardBoxSerialization.recode(plain());
+        assertNotNull(blob);
+        assertEquals(VaultCompression.DEFLATE_DICTIONARY, blob[5]);
+        assertEquals((int) this.compression.getActiveDictionary(), ByteBuffer.wrap(blob).getInt(6));
+        assertEquals(body().length, CardboardBoxSerialization.getBodyLength(blob));
+        assertContents(blob);
+
+        // Compressing back without the dictionary must read the same.
+        setCodec("none");
+        assertArrayEquals(plain(), CardboardBoxSerialization.recode(blob));
+    }
+
+    @Test
+    public void dictionarySurvivesRestart() throws Exception {
+        setCodec("deflate-dictionary");
+        this.compression.train(Arrays.asList(plain(), plain()));
+        byte[] blob = CardboardBoxSerialization.recode(plain());
+
+        VaultCompression reopened = new VaultCompression(this.folder, Logger.getLogger("test"), () -> this.config);
+        assertEquals(this.compression.getActiveDictionary(), reopened.getActiveDictionary());
+        assertContents(blob);
+    }
+
+    @Test
+    public void missingDictionaryFails() throws Exception {
+        setCodec("deflate-dictionary");
+        this.compression.train(Arrays.asList(plain(), plain()));
+        byte[] blob = CardboardBoxSerialization.recode(plain());
+
+        delete(this.folder);
+        new VaultCompression(this.folder, Logger.getLogger("test"), () -> this.config);
+        try {
+            CardboardBoxSerialization.index(blob);
+            fail("Read a vault without its dictionary");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains("dictionary"));
+        }
+        assertFalse(CardboardBoxSerialization.isReadable(blob));
+    }
+
+    @Test
+    public void versionOneRoundTrip() throws Exception {
+        byte[] body = body();
+        byte[] blob = ByteBuffer.allocate(5 + body.length).putInt(MAGIC).put((byte) 1).put(body).array();
+        assertContents(blob);
+    }
+
+    @Test
+    public void legacyBinary() throws Exception {
+        byte[] blob = legacy();
+        assertLegacy(blob);
+        assertArrayEquals(blob, CardboardBoxSerialization.uncompressed(blob));
+    }
+
+    @Test
+    public void legacyBase64() throws Exception {
+        String text = Base64.getMimeEncoder().encodeToString(legacy());
+        byte[] blob = text.getBytes(StandardCharsets.US_ASCII);
+        assertLegacy(blob);
+        assertArrayEquals(legacy(), CardboardBoxSerialization.uncompressed(blob));
+    }
+
+    @Test
+    public void emptyVault() throws Exception {
+        this.items = new byte[SLOTS][];
+        setCodec("deflate");
+        byte[] blob = plain();
+        VaultContents contents = CardboardBoxSerialization.index(blob);
+        assertTrue(contents.isEmpty());
+        assertTrue(CardboardBoxSerialization.readItems(blob).isEmpty());
+    }
+
+    @Test
+    public void corruptDataFails() {
+        byte[] blob = plain();
+        byte[] cut = Arrays.copyOf(blob, blob.length - 5);
+        assertFalse(CardboardBoxSerialization.isReadable(cut));
+        try {
+            CardboardBoxSerialization.readItems(cut);
+            fail("Read a cut off vault");
+        } catch (IOException expected) {
+            // Reported, not thrown as a runtime exception.
+        }
+    }
+
+    private void assertContents(byte[] blob) throws IOException {
+        VaultContents contents = CardboardBoxSerialization.index(blob);
+        assertEquals(SLOTS, contents.getSize());
+        List<byte[]> expected = new ArrayList<>();
+        for (int slot = 0; slot < SLOTS; slot++) {
+            assertEquals("slot " + slot, this.items[slot] != null, contents.isOccupied(slot));
+            if (this.items[slot] != null) {
+                expected.add(this.items[slot]);
+            }
+        }
+        assertItems(expected, CardboardBoxSerialization.readItems(blob));
+        assertTrue(CardboardBoxSerialization.isReadable(blob));
+    }
+
+    private void assertLegacy(byte[] blob) throws IOException {
+        VaultContents contents = CardboardBoxSerialization.index(blob);
+        assertEquals(SLOTS, contents.getSize());
+        List<byte[]> expected = new ArrayList<>();
+        for (byte[] item : this.items) {
+            expected.add(item != null ? item : item("air"));
+        }
+        assertItems(expected, CardboardBoxSerialization.readItems(blob));
+    }
+
+    private static void assertItems(List<byte[]> expected, List<byte[]> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals("item " + i, expected.get(i), actual.get(i));
+        }
+    }
+
+    private void setCodec(String codec) throws ReflectiveOperationException {
+        Field field = Config.Storage.Compression.class.getDeclaredField("codec");
+        field.setAccessible(true);
+        field.set(this.config, codec);
+    }
+
+    private static byte[] item(String name) {
+        // Repetitive like real item NBT, so it compresses.
+        return String.join("", Collections.nCopies(8, "{id:minecraft:" + name + ",Count:1b}")).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] body() {
+        int size = 2 + ((SLOTS + 7) >> 3);
+        byte[] bitmap = new byte[(SLOTS + 7) >> 3];
+        for (int slot = 0; slot < SLOTS; slot++) {
+            if (this.items[slot] != null) {
+                bitmap[slot >> 3] |= 1 << (slot & 7);
+                size += 4 + this.items[slot].length;
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putShort((short) SLOTS).put(bitmap);
+        for (byte[] item : this.items) {
+            if (item != null) {
+                buffer.putInt(item.length).put(item);
+            }
+        }
+        return buffer.array();
+    }
+
+    // An uncompressed blob of the current format.
+    private byte[] plain() {
+        byte[] body = body();
+        return ByteBuffer.allocate(6 + body.length).putInt(MAGIC).put((byte) 2).put(VaultCompression.NONE).put(body).array();
+    }
+
+    // The old format: a slot count, then every slot as a length prefixed item, air for empty ones.
+    private byte[] legacy() {
+        int size = 4;
+        for (byte[] item : this.items) {
+            size += 4 + (item != null ? item : item("air")).length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size).putInt(SLOTS);
+        for (byte[] item : this.items) {
+            byte[] stored = item != null ? item : item("air");
+            buffer.putInt(stored.length).put(stored);
+        }
+        return buffer.array();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        for (File child : children != null ? children : new File[0]) {
+            delete(child);
+        }
+        file.delete();
+    }
+}
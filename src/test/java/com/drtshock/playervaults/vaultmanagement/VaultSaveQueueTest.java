@@ -0,0 +1,236 @@
+/*
+ * PlayerVaultsX
+ * Copyright (C) 2013 Trent Hensler
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.drtshock.playervaults.vaultmanagement;
+
+import com.drtshock.playervaults.storage.VaultKey;
+import com.drtshock.playervaults.storage.VaultStorage;
+import org.bukkit.inventory.ItemStack;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class VaultSaveQueueTest {
+
+    private static final VaultKey SLOW = new VaultKey("slow", 1);
+    private static final VaultKey A = new VaultKey("a", 1);
+    private static final VaultKey B = new VaultKey("b", 2);
+
+    private GatedStorage storage;
+    private VaultSaveQueue queue;
+
+    @Before
+    public void setUp() {
+        this.storage = new GatedStorage();
+        this.queue = new VaultSaveQueue(Logger.getLogger("test"), this.storage, new HeapVaultCache(1 << 20), new ConcurrentHashMap<>(), 500);
+        this.queue.start();
+    }
+
+    @After
+    public void tearDown() {
+        this.storage.gate.countDown();
+        this.queue.shutdown(1000);
+    }
+
+    @Test
+    public void coalescesSavesOfTheSameVault() throws Exception {
+        holdWriter();
+        this.queue.save(A, new ItemStack[9]);
+        this.queue.save(A, new ItemStack[18]);
+        this.queue.save(A, new ItemStack[27]);
+        assertEquals(27, this.queue.getQueued(A).length);
+        assertTrue(this.queue.hasQueued("a"));
+
+        this.storage.gate.countDown();
+        this.queue.shutdown(10000);
+        assertEquals(Collections.singletonList(SLOW + "=9"), this.storage.writes.subList(0, 1));
+        assertEquals(Collections.singletonList(A + "=27"), this.storage.writes.subList(1, this.storage.writes.size()));
+        assertFalse(this.queue.hasQueued("a"));
+    }
+
+    @Test
+    public void deleteReplacesQueuedSave() throws Exception {
+        holdWriter();
+        this.queue.save(A, new ItemStack[9]);
+        this.queue.delete(A);
+        assertSame(VaultSaveQueue.DELETED, this.queue.getQueued(A));
+        Set<Integer> vaults = new HashSet<>(Collections.singleton(1));
+        this.queue.applyQueued("a", vaults);
+        assertTrue(vaults.isEmpty());
+
+        this.storage.gate.countDown();
+        this.queue.shutdown(10000);
+        assertEquals(2, this.storage.writes.size());
+        assertEquals(A + "=deleted", this.storage.writes.get(1));
+    }
+
+    @Test
+    public void shutdownDrainsQueue() throws Exception {
+        holdWriter();
+        this.queue.save(A, new ItemStack[9]);
+        this.queue.save(B, new ItemStack[18]);
+        this.storage.gate.countDown();
+        this.queue.shutdown(10000);
+        assertEquals(3, this.storage.writes.size());
+        assertTrue(this.storage.threads.stream().allMatch(thread -> thread.equals("PlayerVaults save queue")));
+        assertNull(this.queue.getQueued(A));
+        assertNull(this.queue.getQueued(B));
+    }
+
+    /**
+     * Past the timeout, the writer finishes the vault it's on before whatever is left is written by the
+     * thread shutting down, so nothing is lost and no vault is written twice at once.
+     */
+    @Test
+    public void shutdownWritesLeftoversAfterTimeout() throws Exception {
+        holdWriter();
+        this.queue.save(A, new ItemStack[9]);
+        this.queue.save(B, new ItemStack[18]);
+        Thread stopping = new Thread(() -> this.queue.shutdown(50), "stopping");
+        stopping.start();
+        // Well past the timeout, while the writer still can't finish.
+        Thread.sleep(300);
+        assertEquals(0, this.storage.writes.size());
+        this.storage.gate.countDown();
+        stopping.join(10000);
+        assertFalse(stopping.isAlive());
+
+        assertEquals(3, this.storage.writes.size());
+        assertEquals(SLOW + "=9", this.storage.writes.get(0));
+        assertEquals("PlayerVaults save queue", this.storage.threads.get(0));
+        assertEquals("stopping", this.storage.threads.get(1));
+        assertEquals("stopping", this.storage.threads.get(2));
+    }
+
+    @Test
+    public void writesDirectlyAfterShutdown() {
+        this.queue.shutdown(1000);
+        this.queue.save(A, new ItemStack[9]);
+        assertEquals(Collections.singletonList(A + "=9"), this.storage.writes);
+        assertEquals(Thread.currentThread().getName(), this.storage.threads.get(0));
+    }
+
+    // Has the writer pick up a vault it can't finish writing until the gate opens.
+    private void holdWriter() throws InterruptedException {
+        this.queue.save(SLOW, new ItemStack[9]);
+        assertTrue(this.storage.entered.await(10, TimeUnit.SECONDS));
+    }
+
+    private static final class GatedStorage implements VaultStorage {
+
+        private final CountDownLatch gate = new CountDownLatch(1);
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final Map<String, byte[]> data = new ConcurrentHashMap<>();
+        private final List<String> writes = Collections.synchronizedList(new ArrayList<>());
+        private final List<String> threads = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public String getName() {
+            return "test";
+        }
+
+        @Override
+        public byte[] load(String holder, int number) {
+            return this.data.get(holder + ' ' + number);
+        }
+
+        @Override
+        public void save(String holder, int number, byte[] data) throws IOException {
+            if (holder.equals(SLOW.getHolder())) {
+                this.entered.countDown();
+                try {
+                    this.gate.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            this.data.put(holder + ' ' + number, data);
+            record(new VaultKey(holder, number) + "=" + slots(data));
+        }
+
+        @Override
+        public void delete(String holder, int number) {
+            this.data.remove(holder + ' ' + number);
+            record(new VaultKey(holder, number) + "=deleted");
+        }
+
+        // Vaults of empty slots only differ in their slot count, and are too small to ever be compressed.
+        private static int slots(byte[] data) {
+            return ByteBuffer.wrap(data).getShort(6) & 0xFFFF;
+        }
+
+        private void record(String write) {
+            this.threads.add(Thread.currentThread().getName());
+            this.writes.add(write);
+        }
+
+        @Override
+        public void deleteAll(String holder) {
+            this.data.keySet().removeIf(key -> key.startsWith(holder + ' '));
+        }
+
+        @Override
+        public Set<Integer> list(String holder) {
+            Set<Integer> vaults = new HashSet<>();
+            for (String key : this.data.keySet()) {
+                if (key.startsWith(holder + ' ')) {
+                    vaults.add(Integer.parseInt(key.substring(holder.length() + 1)));
+                }
+            }
+            return vaults;
+        }
+
+        @Override
+        public boolean exists(String holder, int number) {
+            return this.data.containsKey(holder + ' ' + number);
+        }
+
+        @Override
+        public Set<String> getHolders() {
+            Set<String> holders = new HashSet<>();
+            for (String key : this.data.keySet()) {
+                holders.add(key.substring(0, key.indexOf(' ')));
+            }
+            return holders;
+        }
+
+        @Override
+        public long getLastModified(String holder) {
+            return 0;
+        }
+    }
+}